@@ -0,0 +1,94 @@
+package org.swdc.data.benchmark;
+
+import jakarta.persistence.EntityManager;
+import org.swdc.data.DefaultRepository;
+import org.swdc.data.EMFProviderFactory;
+import org.swdc.data.RepositoryManager;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内存中的H2数据库，每个实例使用一个独立的数据库。
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private final EMFProviderFactory factory;
+
+    private BenchmarkDatabase(EMFProviderFactory factory) {
+        this.factory = factory;
+    }
+
+    public static BenchmarkDatabase open() {
+        List<Class> entities = new ArrayList<>(List.of(Customer.class, PurchaseOrder.class, OrderLine.class));
+        List<Class> repositories = new ArrayList<>(List.of(CustomerRepository.class));
+        EMFProviderFactory factory = new EMFProviderFactory(entities, repositories);
+        factory.initialize();
+        factory.url("jdbc:h2:mem:benchmark-" + counter.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+        factory.create();
+        if (factory.getEntityManager() == null) {
+            throw new IllegalStateException("can not start the database");
+        }
+        factory.release();
+        return new BenchmarkDatabase(factory);
+    }
+
+    public EMFProviderFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * @param dispatch proxy使用动态代理，generated使用编译期生成的实现类
+     * @return Repository
+     */
+    public CustomerRepository repository(String dispatch) {
+        try {
+            DefaultRepository repository;
+            if ("generated".equals(dispatch)) {
+                Class<?> generated = Class.forName(CustomerRepository.class.getName() + RepositoryManager.GENERATED_SUFFIX);
+                repository = (DefaultRepository) generated.getConstructor().newInstance();
+                repository.init(factory, Customer.class);
+                return (CustomerRepository) repository;
+            }
+            repository = new DefaultRepository();
+            repository.init(factory, Customer.class);
+            return (CustomerRepository) Proxy.newProxyInstance(
+                    CustomerRepository.class.getClassLoader(),
+                    new Class[] { CustomerRepository.class },
+                    repository
+            );
+        } catch (Exception e) {
+            throw new IllegalStateException("can not create repository: " + dispatch, e);
+        }
+    }
+
+    /**
+     * 删除全部数据。
+     */
+    public void clear() {
+        try {
+            factory.unitOfWork(() -> {
+                EntityManager em = factory.getEntityManager();
+                em.getTransaction().begin();
+                em.createQuery("delete from OrderLine").executeUpdate();
+                em.createQuery("delete from PurchaseOrder").executeUpdate();
+                em.createQuery("delete from Customer").executeUpdate();
+                em.getTransaction().commit();
+                em.clear();
+                return null;
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("can not clear the database", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        factory.destroy();
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.swdc.data.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * 运行测试，参数与JMH的命令行相同。
+ *
+ * 没有指定-rf和-rff的时候，结果以JSON格式写入target/swdata-版本号.json，
+ * 例如只运行复制的测试：java -jar target/benchmarks.jar Stateless -p ordersPerCustomer=20
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+        if (options.shouldList()) {
+            new Runner(options).list();
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!options.getResult().hasValue()) {
+            builder.result("target/swdata-" + version() + ".json");
+        }
+        new Runner(builder.build()).run();
+    }
+
+    /**
+     * @return 被测试的swdata的版本，由maven写入benchmark.properties
+     */
+    private static String version() throws Exception {
+        Properties properties = new Properties();
+        try (InputStream in = BenchmarkMain.class.getResourceAsStream("/benchmark.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        }
+        return properties.getProperty("swdata.version", "unknown");
+    }
+
+}
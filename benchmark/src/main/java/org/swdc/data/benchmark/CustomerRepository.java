@@ -0,0 +1,27 @@
+package org.swdc.data.benchmark;
+
+import org.swdc.data.JPARepository;
+import org.swdc.data.Page;
+import org.swdc.data.Pageable;
+import org.swdc.data.anno.Param;
+import org.swdc.data.anno.Repository;
+import org.swdc.data.anno.SQLQuery;
+
+import java.util.stream.Stream;
+
+@Repository
+public interface CustomerRepository extends JPARepository<Customer, Long> {
+
+    @SQLQuery("from Customer where name = :name")
+    Customer findByName(@Param("name") String name);
+
+    @SQLQuery("from Customer where level = :level order by id")
+    Page<Customer> findByLevel(@Param("level") int level, Pageable pageable);
+
+    @SQLQuery("from Customer order by id")
+    Stream<Customer> streamOrdered();
+
+    @SQLQuery("select count(c) from Customer c")
+    long countAll();
+
+}
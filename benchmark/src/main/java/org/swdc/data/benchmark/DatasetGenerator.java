@@ -0,0 +1,113 @@
+package org.swdc.data.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 生成测试数据，同样的参数和种子总是生成同样的数据，
+ * 不同版本的测试结果因此可以直接比较。
+ */
+public class DatasetGenerator {
+
+    private static final String[] PRODUCTS = {
+            "keyboard", "mouse", "monitor", "laptop", "cable", "adapter", "headset", "camera"
+    };
+
+    /**
+     * 客户的等级分布在0到LEVELS - 1之间
+     */
+    public static final int LEVELS = 10;
+
+    private final int ordersPerCustomer;
+
+    private final int linesPerOrder;
+
+    private final Random random;
+
+    private int sequence;
+
+    /**
+     * @param ordersPerCustomer 每个客户的订单数
+     * @param linesPerOrder 每个订单的明细数
+     * @param seed 随机数种子
+     */
+    public DatasetGenerator(int ordersPerCustomer, int linesPerOrder, long seed) {
+        this.ordersPerCustomer = ordersPerCustomer;
+        this.linesPerOrder = linesPerOrder;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 生成一个还没有保存的客户，以及它的订单和明细。
+     *
+     * @return 客户
+     */
+    public Customer customer() {
+        int index = sequence ++;
+        Customer customer = new Customer();
+        customer.setName("customer-" + index);
+        customer.setEmail("customer-" + index + "@example.com");
+        customer.setLevel(random.nextInt(LEVELS));
+        for (int i = 0; i < ordersPerCustomer; i ++) {
+            PurchaseOrder order = new PurchaseOrder();
+            order.setNumber(index + "-" + i);
+            order.setCustomer(customer);
+            long total = 0;
+            for (int j = 0; j < linesPerOrder; j ++) {
+                OrderLine line = new OrderLine();
+                line.setProduct(PRODUCTS[random.nextInt(PRODUCTS.length)]);
+                line.setQuantity(1 + random.nextInt(5));
+                line.setPrice(100 + random.nextInt(100000));
+                line.setPurchaseOrder(order);
+                order.getLines().add(line);
+                total += line.getPrice() * line.getQuantity();
+            }
+            order.setTotal(total);
+            customer.getOrders().add(order);
+        }
+        return customer;
+    }
+
+    /**
+     * @param count 客户的数量
+     * @return 还没有保存的客户
+     */
+    public List<Customer> customers(int count) {
+        List<Customer> customers = new ArrayList<>(count);
+        for (int i = 0; i < count; i ++) {
+            customers.add(customer());
+        }
+        return customers;
+    }
+
+    /**
+     * 生成并保存客户，每一批在各自的事务中保存。
+     *
+     * @param repository Repository
+     * @param count 客户的数量
+     * @param batch 每一批的数量
+     * @return 保存后的客户的Id，按照保存的顺序
+     */
+    public List<Long> populate(CustomerRepository repository, int count, int batch) {
+        List<Long> ids = new ArrayList<>(count);
+        for (int saved = 0; saved < count; saved += batch) {
+            List<Customer> customers = repository.saveAll(customers(Math.min(batch, count - saved)));
+            if (customers == null) {
+                throw new IllegalStateException("can not save the dataset");
+            }
+            for (Customer customer : customers) {
+                ids.add(customer.getId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return 已经生成的客户的名称中的一个
+     */
+    public String anyName() {
+        return "customer-" + random.nextInt(Math.max(sequence, 1));
+    }
+
+}
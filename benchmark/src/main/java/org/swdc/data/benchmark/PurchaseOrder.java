@@ -0,0 +1,74 @@
+package org.swdc.data.benchmark;
+
+import jakarta.persistence.CascadeType;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.OneToMany;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+@Entity
+public class PurchaseOrder {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE)
+    private Long id;
+
+    private String number;
+
+    private long total;
+
+    @ManyToOne
+    private Customer customer;
+
+    /**
+     * 使用Set，这样orders和lines可以在同一次查询中加载
+     */
+    @OneToMany(mappedBy = "purchaseOrder", cascade = CascadeType.ALL)
+    private Set<OrderLine> lines = new LinkedHashSet<>();
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getNumber() {
+        return number;
+    }
+
+    public void setNumber(String number) {
+        this.number = number;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public Customer getCustomer() {
+        return customer;
+    }
+
+    public void setCustomer(Customer customer) {
+        this.customer = customer;
+    }
+
+    public Set<OrderLine> getLines() {
+        return lines;
+    }
+
+    public void setLines(Set<OrderLine> lines) {
+        this.lines = lines;
+    }
+
+}
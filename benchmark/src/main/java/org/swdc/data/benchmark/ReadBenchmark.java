@@ -0,0 +1,100 @@
+package org.swdc.data.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.swdc.data.EMFProviderFactory;
+import org.swdc.data.Page;
+import org.swdc.data.Pageable;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 分页和流式读取。偏移分页和键集分页读取同样随机的位置，
+ * 流式读取和forEach遍历整张表。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({ "1000", "10000" })
+    private int customers;
+
+    @Param({ "50" })
+    private int pageSize;
+
+    private BenchmarkDatabase database;
+
+    private EMFProviderFactory factory;
+
+    private CustomerRepository repository;
+
+    private List<Long> ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.open();
+        factory = database.getFactory();
+        repository = database.repository("generated");
+        ids = new DatasetGenerator(0, 0, 42).populate(repository, customers, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public Page<Customer> offsetPage() {
+        int pages = Math.max(customers / pageSize, 1);
+        return repository.getAll(Pageable.of(ThreadLocalRandom.current().nextInt(pages), pageSize));
+    }
+
+    @Benchmark
+    public Page<Customer> keysetPage() {
+        int index = ThreadLocalRandom.current().nextInt(Math.max(ids.size() - pageSize, 1));
+        return repository.getAll(Pageable.keyset(null, ids.get(index), pageSize));
+    }
+
+    /**
+     * 带有条件的查询分页，包括推导出的count查询
+     */
+    @Benchmark
+    public Page<Customer> queryPage() {
+        return repository.findByLevel(ThreadLocalRandom.current().nextInt(DatasetGenerator.LEVELS), Pageable.of(0, pageSize));
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws Exception {
+        factory.unitOfWork(() -> {
+            try (Stream<Customer> stream = repository.streamOrdered()) {
+                stream.forEach(blackhole::consume);
+            }
+            return null;
+        });
+    }
+
+    @Benchmark
+    public void forEach(Blackhole blackhole) {
+        repository.forEach(blackhole::consume);
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.swdc.data.benchmark;
+
+import jakarta.persistence.EntityManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swdc.data.EMFProviderFactory;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository方法的调用开销：动态代理和编译期生成的实现类，
+ * 以及直接使用EntityManager执行同样查询的基准。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({ "proxy", "generated" })
+    private String dispatch;
+
+    @Param({ "1000" })
+    private int customers;
+
+    private BenchmarkDatabase database;
+
+    private EMFProviderFactory factory;
+
+    private CustomerRepository repository;
+
+    private List<Long> ids;
+
+    private DatasetGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.open();
+        factory = database.getFactory();
+        repository = database.repository(dispatch);
+        generator = new DatasetGenerator(0, 0, 42);
+        ids = generator.populate(repository, customers, 500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    /**
+     * 按Id获取，实体通常已经在持久化上下文中，主要是调用本身的开销
+     */
+    @Benchmark
+    public Customer getOne() {
+        return repository.getOne(ids.get(ThreadLocalRandom.current().nextInt(ids.size())));
+    }
+
+    @Benchmark
+    public Customer findByName() {
+        return repository.findByName(generator.anyName());
+    }
+
+    @Benchmark
+    public long countAll() {
+        return repository.countAll();
+    }
+
+    /**
+     * 直接使用EntityManager执行findByName的查询，作为比较的基准
+     */
+    @Benchmark
+    public Object findByNameBaseline() {
+        EntityManager em = factory.getEntityManager();
+        try {
+            return em.createQuery("from Customer where name = :name", Customer.class)
+                    .setParameter("name", generator.anyName())
+                    .getResultStream()
+                    .findFirst()
+                    .orElse(null);
+        } finally {
+            factory.release(em);
+        }
+    }
+
+}
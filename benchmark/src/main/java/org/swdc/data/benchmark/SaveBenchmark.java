@@ -0,0 +1,122 @@
+package org.swdc.data.benchmark;
+
+import jakarta.persistence.EntityManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swdc.data.EMFProviderFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个和批量的保存、删除，以及在一个事务中保存多个实体。
+ *
+ * 每一轮迭代结束后清空数据库，表的大小不会随着测试的进行一直增长。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveBenchmark {
+
+    @Param({ "0", "5" })
+    private int ordersPerCustomer;
+
+    @Param({ "2" })
+    private int linesPerOrder;
+
+    @Param({ "100", "1000" })
+    private int batchSize;
+
+    private BenchmarkDatabase database;
+
+    private EMFProviderFactory factory;
+
+    private CustomerRepository repository;
+
+    private DatasetGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.open();
+        factory = database.getFactory();
+        repository = database.repository("generated");
+        generator = new DatasetGenerator(ordersPerCustomer, linesPerOrder, 42);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        database.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public Customer save() {
+        return repository.save(generator.customer());
+    }
+
+    @Benchmark
+    public List<Customer> saveAll() {
+        return repository.saveAll(generator.customers(batchSize));
+    }
+
+    /**
+     * 与Transactional开启事务的过程相同：开启事务，逐个保存，检查事务没有被标记为只能回滚，flush后提交。
+     * Repository的方法会加入已经存在的事务。
+     *
+     * Transaction拦截器需要依赖注入的容器提供EMFProviderFactory和ProcessPoint，
+     * 这里没有容器，所以按照Transaction.begin的步骤直接操作事务，不包括重试和监控指标的记录。
+     */
+    @Benchmark
+    public int saveInTransaction() throws Exception {
+        List<Customer> customers = generator.customers(batchSize);
+        return factory.unitOfWork(() -> {
+            EntityManager em = factory.getEntityManager();
+            em.getTransaction().begin();
+            try {
+                for (Customer customer : customers) {
+                    repository.save(customer);
+                }
+                if (em.getTransaction().getRollbackOnly()) {
+                    throw new IllegalStateException("transaction was marked as rollback only");
+                }
+                em.flush();
+                em.getTransaction().commit();
+            } finally {
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+                factory.release(em);
+            }
+            return customers.size();
+        });
+    }
+
+    /**
+     * 保存并删除一批实体，删除会级联到订单和明细。
+     */
+    @Benchmark
+    public List<Customer> saveAndRemoveAll() {
+        List<Customer> customers = repository.saveAll(generator.customers(batchSize));
+        repository.removeAll(customers);
+        return customers;
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.swdc.data.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.swdc.data.FetchPlan;
+import org.swdc.data.StatelessHelper;
+import org.swdc.data.StatelessWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复制Customer - PurchaseOrder - OrderLine的对象图。
+ *
+ * loaded是通过FetchPlan从数据库中加载的实体（集合是Hibernate的PersistentCollection），
+ * detached是DatasetGenerator直接生成的普通对象，两者的差别是Hibernate代理和集合带来的开销。
+ * 关联在复制之前已经加载完毕，测试的只是复制本身。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatelessBenchmark {
+
+    private static final FetchPlan PLAN = FetchPlan.paths("orders", "orders.lines");
+
+    @Param({ "loaded", "detached" })
+    private String source;
+
+    @Param({ "100" })
+    private int customers;
+
+    @Param({ "5", "20" })
+    private int ordersPerCustomer;
+
+    @Param({ "5" })
+    private int linesPerOrder;
+
+    private BenchmarkDatabase database;
+
+    private List<Customer> entities;
+
+    private List<Customer> copies;
+
+    private final OutputStream discard = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DatasetGenerator generator = new DatasetGenerator(ordersPerCustomer, linesPerOrder, 42);
+        if ("loaded".equals(source)) {
+            database = BenchmarkDatabase.open();
+            CustomerRepository repository = database.repository("generated");
+            generator.populate(repository, customers, 50);
+            entities = repository.getAll(PLAN);
+        } else {
+            entities = generator.customers(customers);
+        }
+        if (entities == null || entities.size() != customers) {
+            throw new IllegalStateException("can not prepare the dataset");
+        }
+        copies = StatelessHelper.statelessAll(entities);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (database != null) {
+            database.close();
+        }
+    }
+
+    /**
+     * 复制一个客户以及它的全部订单和明细
+     */
+    @Benchmark
+    public Customer stateless() {
+        return StatelessHelper.stateless(entities.get(0));
+    }
+
+    @Benchmark
+    public Customer statelessGraph() {
+        return StatelessHelper.statelessGraph(entities.get(0));
+    }
+
+    @Benchmark
+    public Customer statelessPlan() {
+        return StatelessHelper.stateless(entities.get(0), PLAN);
+    }
+
+    @Benchmark
+    public List<Customer> statelessAll() {
+        return StatelessHelper.statelessAll(entities);
+    }
+
+    @Benchmark
+    public List<Customer> safetyAll() {
+        return StatelessHelper.safetyAll(copies);
+    }
+
+    @Benchmark
+    public void writeJson() throws IOException {
+        StatelessWriter.json(discard).writeAll(entities);
+    }
+
+}
@@ -0,0 +1,305 @@
+package org.swdc.data.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 为标注了Repository的接口在编译期生成实现类。
+ *
+ * 生成的实现类继承DefaultRepository，查询方法直接调用DefaultRepository的query方法，
+ * 运行的时候RepositoryManager会优先使用它们而不是动态代理。
+ *
+ * 同时本类会检查SQLQuery中的参数和方法的Param注解是否一致，
+ * 不一致的会作为编译错误报告出来，而不是等到运行的时候返回null。
+ */
+public class RepositoryProcessor extends AbstractProcessor {
+
+    static final String REPOSITORY = "org.swdc.data.anno.Repository";
+
+    static final String JPA_REPOSITORY = "org.swdc.data.JPARepository";
+
+    static final String SQL_QUERY = "org.swdc.data.anno.SQLQuery";
+
+    static final String SQL_QUERY_FACTORY = "org.swdc.data.anno.SQLQueryFactory";
+
+    static final String PARAM = "org.swdc.data.anno.Param";
+
+    /**
+     * 此类型的参数用于逐行处理查询结果，不需要绑定到查询上。
+     */
+    static final String CONSUMER = "java.util.function.Consumer";
+
+    /**
+     * 分页参数，不需要绑定到查询上，键集分页的时候提供 :keyset 参数。
+     */
+    static final String PAGEABLE = "org.swdc.data.Pageable";
+
+    /**
+     * 需要加载的关联，不需要绑定到查询上。
+     */
+    static final String FETCH_PLAN = "org.swdc.data.FetchPlan";
+
+    /**
+     * 与Pageable.KEYSET_PARAMETER保持一致。
+     */
+    static final String KEYSET_PARAMETER = "keyset";
+
+    /**
+     * 与RepositoryManager.GENERATED_SUFFIX保持一致。
+     */
+    static final String GENERATED_SUFFIX = "_Impl";
+
+    /**
+     * HQL中的命名参数，例如 :name
+     */
+    private static final Pattern NAMED_PARAMETER = Pattern.compile("(?<![:\\w]):([A-Za-z_][A-Za-z0-9_]*)");
+
+    /**
+     * HQL中的位置参数，例如 ?1
+     */
+    private static final Pattern POSITIONAL_PARAMETER = Pattern.compile("\\?(\\d*)");
+
+    /**
+     * HQL中的字符串常量，查找参数前需要先去掉。
+     */
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(REPOSITORY);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement repository = processingEnv.getElementUtils().getTypeElement(REPOSITORY);
+        if (repository == null) {
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(repository)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            DeclaredType jpaRepository = findJpaRepository(type);
+            if (jpaRepository == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "repository interface must extend " + JPA_REPOSITORY + " directly", type);
+                continue;
+            }
+            List<ExecutableElement> methods = collectMethods(type);
+            boolean valid = true;
+            for (ExecutableElement method : methods) {
+                valid = validate(method) && valid;
+            }
+            if (valid) {
+                write(type, jpaRepository, methods);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * RepositoryManager通过第一个父接口的泛型参数获取实体类型，
+     * 所以这里同样要求JPARepository是第一个父接口。
+     */
+    private DeclaredType findJpaRepository(TypeElement type) {
+        List<? extends TypeMirror> interfaces = type.getInterfaces();
+        if (interfaces.isEmpty()) {
+            return null;
+        }
+        DeclaredType first = (DeclaredType) interfaces.get(0);
+        TypeElement element = (TypeElement) first.asElement();
+        if (!element.getQualifiedName().contentEquals(JPA_REPOSITORY) || first.getTypeArguments().size() != 2) {
+            return null;
+        }
+        return first;
+    }
+
+    /**
+     * 收集需要生成实现的方法，JPARepository的方法由DefaultRepository实现。
+     */
+    private List<ExecutableElement> collectMethods(TypeElement type) {
+        List<ExecutableElement> result = new ArrayList<>();
+        Set<String> jpaMethods = new HashSet<>();
+        TypeElement jpaRepository = processingEnv.getElementUtils().getTypeElement(JPA_REPOSITORY);
+        for (ExecutableElement method : ElementFilter.methodsIn(jpaRepository.getEnclosedElements())) {
+            jpaMethods.add(method.getSimpleName() + "/" + method.getParameters().size());
+        }
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            TypeElement owner = (TypeElement) method.getEnclosingElement();
+            if (owner.getQualifiedName().contentEquals(JPA_REPOSITORY)) {
+                continue;
+            }
+            boolean query = findAnnotation(method, SQL_QUERY) != null || findAnnotation(method, SQL_QUERY_FACTORY) != null;
+            if (!query && jpaMethods.contains(method.getSimpleName() + "/" + method.getParameters().size())) {
+                continue;
+            }
+            result.add(method);
+        }
+        return result;
+    }
+
+    private boolean validate(ExecutableElement method) {
+        Messager messager = processingEnv.getMessager();
+        AnnotationMirror sqlQuery = findAnnotation(method, SQL_QUERY);
+        if (sqlQuery == null) {
+            if (findAnnotation(method, SQL_QUERY_FACTORY) == null) {
+                messager.printMessage(Diagnostic.Kind.WARNING,
+                        "method has neither SQLQuery nor SQLQueryFactory and will always return null", method);
+            }
+            return true;
+        }
+
+        boolean valid = true;
+        Set<String> declared = new LinkedHashSet<>();
+        boolean pageable = false;
+        for (VariableElement param : method.getParameters()) {
+            if (isType(param.asType(), CONSUMER)) {
+                continue;
+            }
+            if (isType(param.asType(), PAGEABLE)) {
+                pageable = true;
+                continue;
+            }
+            if (isType(param.asType(), FETCH_PLAN)) {
+                continue;
+            }
+            AnnotationMirror paramAnno = findAnnotation(param, PARAM);
+            if (paramAnno == null) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "parameter of a SQLQuery method must be annotated with Param", param);
+                valid = false;
+                continue;
+            }
+            String name = (String) annotationValue(paramAnno, "value");
+            if (!declared.add(name)) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "duplicate Param name: " + name, param);
+                valid = false;
+            }
+        }
+
+        String hql = STRING_LITERAL.matcher((String) annotationValue(sqlQuery, "value")).replaceAll("''");
+        Set<String> named = new LinkedHashSet<>();
+        Matcher matcher = NAMED_PARAMETER.matcher(hql);
+        while (matcher.find()) {
+            named.add(matcher.group(1));
+        }
+        Set<String> positional = new HashSet<>();
+        matcher = POSITIONAL_PARAMETER.matcher(hql);
+        while (matcher.find()) {
+            positional.add(matcher.group(1));
+        }
+        if (!positional.isEmpty()) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "positional parameters can not be bound by Param, use named parameters instead", method);
+            return false;
+        }
+        for (String name : named) {
+            if (pageable && name.equals(KEYSET_PARAMETER)) {
+                continue;
+            }
+            if (!declared.contains(name)) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "query parameter :" + name + " has no matching Param", method);
+                valid = false;
+            }
+        }
+        for (String name : declared) {
+            if (!named.contains(name)) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "Param " + name + " is not used by the query", method);
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private void write(TypeElement type, DeclaredType jpaRepository, List<ExecutableElement> methods) {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String simpleName = flatName(type) + GENERATED_SUFFIX;
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        RepositoryWriter writer = new RepositoryWriter(processingEnv, type, jpaRepository, methods);
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            try (Writer out = file.openWriter()) {
+                out.write(writer.write(packageName, simpleName));
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "can not generate repository: " + e.getMessage(), type);
+        }
+    }
+
+    /**
+     * 与Class.getName()去掉包名并把$换成_的结果一致。
+     */
+    private String flatName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, ((TypeElement) enclosing).getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.toString();
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+        TypeElement target = processingEnv.getElementUtils().getTypeElement(name);
+        return target != null && processingEnv.getTypeUtils().isAssignable(erasure, processingEnv.getTypeUtils().erasure(target.asType()));
+    }
+
+    static AnnotationMirror findAnnotation(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static Object annotationValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> ent : mirror.getElementValues().entrySet()) {
+            if (ent.getKey().getSimpleName().contentEquals(name)) {
+                return ent.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+}
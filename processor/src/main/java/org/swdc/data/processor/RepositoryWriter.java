@@ -0,0 +1,153 @@
+package org.swdc.data.processor;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import java.util.List;
+
+/**
+ * 生成Repository实现类的源代码。
+ *
+ * 生成的类大致如下：
+ * <pre>
+ * public class UserRepository_Impl extends DefaultRepository&lt;User, Long&gt; implements UserRepository {
+ *
+ *     private static final Method M0 = method(UserRepository.class, "findByName", String.class);
+ *
+ *     public User findByName(String name) {
+ *         return (User) query(M0, new Object[] { name });
+ *     }
+ * }
+ * </pre>
+ *
+ * 生成的类省去的是动态代理的分派，内置的方法也不再通过反射调用。查询方法的参数依然以Object[]传给query，
+ * 由按Method缓存的InvocationPlan绑定到查询上，基本类型的参数和返回值仍然会装箱。
+ * JPA的Query.setParameter只接受Object，逐个参数生成setParameter也无法避免装箱，
+ * 反而要在生成的代码中重复分页、FetchPlan、事务和监控等处理，所以这里没有这样做。
+ */
+class RepositoryWriter {
+
+    private final ProcessingEnvironment env;
+
+    private final TypeElement type;
+
+    private final DeclaredType jpaRepository;
+
+    private final List<ExecutableElement> methods;
+
+    RepositoryWriter(ProcessingEnvironment env, TypeElement type, DeclaredType jpaRepository, List<ExecutableElement> methods) {
+        this.env = env;
+        this.type = type;
+        this.jpaRepository = jpaRepository;
+        this.methods = methods;
+    }
+
+    String write(String packageName, String simpleName) {
+        Types types = env.getTypeUtils();
+        String repositoryName = type.getQualifiedName().toString();
+        List<? extends TypeMirror> arguments = jpaRepository.getTypeArguments();
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("// generated by swdata-processor, do not edit.\n");
+        source.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        source.append("public class ").append(simpleName)
+                .append(" extends org.swdc.data.DefaultRepository<")
+                .append(arguments.get(0)).append(", ").append(arguments.get(1)).append(">")
+                .append(" implements ").append(repositoryName).append(" {\n\n");
+
+        for (int index = 0; index < methods.size(); index ++) {
+            ExecutableElement method = methods.get(index);
+            source.append("    private static final java.lang.reflect.Method M").append(index)
+                    .append(" = method(").append(repositoryName).append(".class, \"")
+                    .append(method.getSimpleName()).append("\"");
+            for (VariableElement param : method.getParameters()) {
+                source.append(", ").append(types.erasure(param.asType())).append(".class");
+            }
+            source.append(");\n");
+        }
+        source.append("\n");
+
+        for (int index = 0; index < methods.size(); index ++) {
+            writeMethod(source, methods.get(index), "M" + index);
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private void writeMethod(StringBuilder source, ExecutableElement method, String field) {
+        ExecutableType executable = (ExecutableType) env.getTypeUtils().asMemberOf((DeclaredType) type.asType(), method);
+        TypeMirror returnType = executable.getReturnType();
+        List<? extends TypeMirror> paramTypes = executable.getParameterTypes();
+        List<? extends VariableElement> params = method.getParameters();
+
+        source.append("    @Override\n    public ");
+        if (!method.getTypeParameters().isEmpty()) {
+            source.append("<");
+            for (int index = 0; index < method.getTypeParameters().size(); index ++) {
+                TypeParameterElement typeParameter = method.getTypeParameters().get(index);
+                if (index > 0) {
+                    source.append(", ");
+                }
+                source.append(typeParameter.getSimpleName());
+                List<? extends TypeMirror> bounds = typeParameter.getBounds();
+                if (!bounds.isEmpty() && !bounds.get(0).toString().equals("java.lang.Object")) {
+                    source.append(" extends ");
+                    for (int bound = 0; bound < bounds.size(); bound ++) {
+                        source.append(bound > 0 ? " & " : "").append(bounds.get(bound));
+                    }
+                }
+            }
+            source.append("> ");
+        }
+        source.append(returnType).append(" ").append(method.getSimpleName()).append("(");
+        for (int index = 0; index < params.size(); index ++) {
+            if (index > 0) {
+                source.append(", ");
+            }
+            source.append(paramTypes.get(index)).append(" ").append(params.get(index).getSimpleName());
+        }
+        source.append(")");
+        if (!method.getThrownTypes().isEmpty()) {
+            source.append(" throws ");
+            for (int index = 0; index < method.getThrownTypes().size(); index ++) {
+                source.append(index > 0 ? ", " : "").append(method.getThrownTypes().get(index));
+            }
+        }
+        source.append(" {\n");
+
+        StringBuilder call = new StringBuilder("query(").append(field).append(", new Object[] {");
+        for (int index = 0; index < params.size(); index ++) {
+            call.append(index > 0 ? ", " : " ").append(params.get(index).getSimpleName());
+        }
+        call.append(params.isEmpty() ? "})" : " })");
+
+        TypeKind kind = returnType.getKind();
+        if (kind == TypeKind.VOID) {
+            source.append("        ").append(call).append(";\n");
+        } else if (kind == TypeKind.BOOLEAN) {
+            source.append("        Object $result = ").append(call).append(";\n");
+            source.append("        return $result != null && (Boolean) $result;\n");
+        } else if (kind == TypeKind.CHAR) {
+            source.append("        Object $result = ").append(call).append(";\n");
+            source.append("        return $result == null ? '\\0' : (Character) $result;\n");
+        } else if (kind.isPrimitive()) {
+            source.append("        Object $result = ").append(call).append(";\n");
+            source.append("        return $result == null ? (").append(returnType).append(") 0 : ((Number) $result).")
+                    .append(returnType).append("Value();\n");
+        } else {
+            source.append("        return (").append(returnType).append(") ").append(call).append(";\n");
+        }
+        source.append("    }\n\n");
+    }
+
+}
@@ -0,0 +1,194 @@
+package org.swdc.data.processor;
+
+import org.junit.jupiter.api.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用编译器在内存中的源码上运行RepositoryProcessor，检查参数的校验和实现类的生成。
+ *
+ * 注解和JPARepository使用简化的源码代替，处理器只通过名称查找它们。
+ */
+public class RepositoryProcessorTest {
+
+    private static final String[][] STUBS = {
+            { "org.swdc.data.anno.Repository",
+                    "package org.swdc.data.anno;\n" +
+                    "public @interface Repository {}\n" },
+            { "org.swdc.data.anno.SQLQuery",
+                    "package org.swdc.data.anno;\n" +
+                    "public @interface SQLQuery { String value(); String countQuery() default \"\"; }\n" },
+            { "org.swdc.data.anno.Param",
+                    "package org.swdc.data.anno;\n" +
+                    "public @interface Param { String value(); }\n" },
+            { "org.swdc.data.Pageable",
+                    "package org.swdc.data;\n" +
+                    "public class Pageable {}\n" },
+            { "org.swdc.data.JPARepository",
+                    "package org.swdc.data;\n" +
+                    "public interface JPARepository<E, ID> {\n" +
+                    "    E getOne(ID id);\n" +
+                    "    java.util.List<E> getAll();\n" +
+                    "}\n" }
+    };
+
+    private static final String HEADER = "package test;\n" +
+            "import org.swdc.data.JPARepository;\n" +
+            "import org.swdc.data.Pageable;\n" +
+            "import org.swdc.data.anno.*;\n" +
+            "import java.util.List;\n";
+
+    @Test
+    public void validRepository() throws IOException {
+        Result result = process(HEADER +
+                "@Repository\n" +
+                "public interface UserRepository extends JPARepository<String, Long> {\n" +
+                "    @SQLQuery(\"from User where name = :name and age > :age\")\n" +
+                "    List<String> find(@Param(\"name\") String name, @Param(\"age\") int age);\n" +
+                "    @SQLQuery(\"from User where name = ':ignored' and (:keyset is null or id > :keyset) order by id\")\n" +
+                "    List<String> page(Pageable pageable);\n" +
+                "}\n");
+        assertTrue(result.errors.isEmpty(), result.errors.toString());
+        assertTrue(result.generated.contains("UserRepository_Impl.java"), result.generated.toString());
+    }
+
+    @Test
+    public void queryParameterWithoutParam() throws IOException {
+        Result result = process(HEADER +
+                "@Repository\n" +
+                "public interface UserRepository extends JPARepository<String, Long> {\n" +
+                "    @SQLQuery(\"from User where name = :name and age > :age\")\n" +
+                "    List<String> find(@Param(\"name\") String name);\n" +
+                "}\n");
+        assertEquals(Collections.singletonList("query parameter :age has no matching Param"), result.errors);
+        assertTrue(result.generated.isEmpty());
+    }
+
+    @Test
+    public void paramNotUsedByTheQuery() throws IOException {
+        Result result = process(HEADER +
+                "@Repository\n" +
+                "public interface UserRepository extends JPARepository<String, Long> {\n" +
+                "    @SQLQuery(\"from User where name = :name\")\n" +
+                "    List<String> find(@Param(\"name\") String name, @Param(\"nmae\") String other);\n" +
+                "}\n");
+        assertEquals(Collections.singletonList("Param nmae is not used by the query"), result.errors);
+    }
+
+    @Test
+    public void parametersMustBeNamed() throws IOException {
+        Result result = process(HEADER +
+                "@Repository\n" +
+                "public interface UserRepository extends JPARepository<String, Long> {\n" +
+                "    @SQLQuery(\"from User where name = :name\")\n" +
+                "    List<String> find(String name);\n" +
+                "    @SQLQuery(\"from User where name = :name and age = :name\")\n" +
+                "    List<String> twice(@Param(\"name\") String name, @Param(\"name\") String again);\n" +
+                "    @SQLQuery(\"from User where name = ?1\")\n" +
+                "    List<String> positional(@Param(\"name\") String name);\n" +
+                "}\n");
+        assertEquals(Arrays.asList(
+                "parameter of a SQLQuery method must be annotated with Param",
+                "query parameter :name has no matching Param",
+                "duplicate Param name: name",
+                "positional parameters can not be bound by Param, use named parameters instead"
+        ), result.errors);
+    }
+
+    @Test
+    public void keysetRequiresPageable() throws IOException {
+        Result result = process(HEADER +
+                "@Repository\n" +
+                "public interface UserRepository extends JPARepository<String, Long> {\n" +
+                "    @SQLQuery(\"from User where (:keyset is null or id > :keyset)\")\n" +
+                "    List<String> page();\n" +
+                "}\n");
+        assertEquals(Collections.singletonList("query parameter :keyset has no matching Param"), result.errors);
+    }
+
+    @Test
+    public void repositoryMustExtendJpaRepository() throws IOException {
+        Result result = process(HEADER +
+                "@Repository\n" +
+                "public interface UserRepository extends Runnable {\n" +
+                "}\n");
+        assertEquals(Collections.singletonList("repository interface must extend org.swdc.data.JPARepository directly"),
+                result.errors);
+    }
+
+    /**
+     * 编译的结果：处理器报告的错误和生成的源文件
+     */
+    private static class Result {
+
+        private final List<String> errors = new ArrayList<>();
+
+        private final List<String> generated = new ArrayList<>();
+
+    }
+
+    private Result process(String repository) throws IOException {
+        List<JavaFileObject> sources = new ArrayList<>();
+        for (String[] stub : STUBS) {
+            sources.add(new Source(stub[0], stub[1]));
+        }
+        Source repositorySource = new Source("test.UserRepository", repository);
+        sources.add(repositorySource);
+
+        Path generated = Files.createTempDirectory("processor");
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+                    Arrays.asList("-proc:only", "-s", generated.toString()), null, sources);
+            task.setProcessors(Collections.singletonList(new RepositoryProcessor()));
+            task.call();
+        }
+
+        Result result = new Result();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            // 生成的源码引用的类型没有提供，只检查处理器对接口报告的错误
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getSource() == repositorySource) {
+                result.errors.add(diagnostic.getMessage(null));
+            }
+        }
+        try (Stream<Path> paths = Files.walk(generated)) {
+            paths.filter(Files::isRegularFile).forEach(path -> result.generated.add(path.getFileName().toString()));
+        }
+        return result;
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+
+        private final String code;
+
+        Source(String name, String code) {
+            super(URI.create("string:///" + name.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+}
@@ -5,6 +5,12 @@ module swdc.application.data {
     requires org.slf4j;
     requires jakarta.inject;
     requires org.hibernate.orm.core;
+    requires org.hibernate.orm.jcache;
+    requires com.github.benmanes.caffeine.jcache;
+    requires cache.api;
+    requires com.zaxxer.hikari;
+    requires org.hibernate.orm.hikaricp;
+    requires static micrometer.core;
     requires jakarta.annotation;
     requires com.fasterxml.classmate;
     requires java.xml.bind;
@@ -0,0 +1,130 @@
+package org.swdc.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 通过LambdaMetafactory为Getter、Setter和构造方法生成直接调用的函数。
+ *
+ * 生成的类与实体类位于同一个类加载器和包中，调用的是实体的方法本身，
+ * JIT可以把它们内联，不再经过Method.invoke的参数数组和访问检查。
+ *
+ * 实体所在的包没有开放给本模块等原因导致无法生成的时候，
+ * 会退回到反射的实现，行为不变，只是慢一些。
+ */
+class Accessors {
+
+    private static Logger logger = LoggerFactory.getLogger(Accessors.class);
+
+    private Accessors() {
+    }
+
+    static Function<Object, Object> getter(Method getter) {
+        try {
+            MethodHandles.Lookup lookup = lookup(getter.getDeclaringClass());
+            MethodHandle handle = lookup.unreflect(getter);
+            CallSite site = LambdaMetafactory.metafactory(
+                    lookup,
+                    "apply",
+                    MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class),
+                    handle,
+                    MethodType.methodType(boxed(getter.getReturnType()), getter.getDeclaringClass())
+            );
+            return (Function<Object, Object>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            logger.debug("fall back to reflection for " + getter, e);
+            return target -> {
+                try {
+                    return getter.invoke(target);
+                } catch (InvocationTargetException ex) {
+                    throw new RuntimeException(ex.getTargetException());
+                } catch (IllegalAccessException ex) {
+                    throw new RuntimeException(ex);
+                }
+            };
+        }
+    }
+
+    static BiConsumer<Object, Object> setter(Method setter) {
+        try {
+            MethodHandles.Lookup lookup = lookup(setter.getDeclaringClass());
+            MethodHandle handle = lookup.unreflect(setter);
+            CallSite site = LambdaMetafactory.metafactory(
+                    lookup,
+                    "accept",
+                    MethodType.methodType(BiConsumer.class),
+                    MethodType.methodType(void.class, Object.class, Object.class),
+                    handle,
+                    MethodType.methodType(void.class, setter.getDeclaringClass(), boxed(setter.getParameterTypes()[0]))
+            );
+            return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            logger.debug("fall back to reflection for " + setter, e);
+            return (target, value) -> {
+                try {
+                    setter.invoke(target, value);
+                } catch (InvocationTargetException ex) {
+                    throw new RuntimeException(ex.getTargetException());
+                } catch (IllegalAccessException ex) {
+                    throw new RuntimeException(ex);
+                }
+            };
+        }
+    }
+
+    static Supplier<Object> constructor(Constructor constructor) {
+        try {
+            MethodHandles.Lookup lookup = lookup(constructor.getDeclaringClass());
+            MethodHandle handle = lookup.unreflectConstructor(constructor);
+            CallSite site = LambdaMetafactory.metafactory(
+                    lookup,
+                    "get",
+                    MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class),
+                    handle,
+                    MethodType.methodType(constructor.getDeclaringClass())
+            );
+            return (Supplier<Object>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            logger.debug("fall back to reflection for " + constructor, e);
+            return () -> {
+                try {
+                    return constructor.newInstance();
+                } catch (InvocationTargetException ex) {
+                    throw new RuntimeException(ex.getTargetException());
+                } catch (ReflectiveOperationException ex) {
+                    throw new RuntimeException(ex);
+                }
+            };
+        }
+    }
+
+    /**
+     * 以实体类的身份创建Lookup，生成的类会被定义在实体类的包中。
+     */
+    private static MethodHandles.Lookup lookup(Class target) throws IllegalAccessException {
+        Module module = Accessors.class.getModule();
+        if (!module.canRead(target.getModule())) {
+            module.addReads(target.getModule());
+        }
+        return MethodHandles.privateLookupIn(target, MethodHandles.lookup());
+    }
+
+    private static Class boxed(Class type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.swdc.data;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.jcache.internal.JCacheRegionFactory;
+import org.hibernate.cache.spi.RegionFactory;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 二级缓存和查询缓存使用的RegionFactory。
+ *
+ * 在Hibernate的JCache实现的基础上，按照配置为每个缓存区域设置存活时间和最大数量：
+ * swdc.data.cache.region.区域名.ttl（秒）和swdc.data.cache.region.区域名.max-size，
+ * 没有单独配置的区域使用swdc.data.cache.ttl和swdc.data.cache.max-size，0表示不限制。
+ * 实体的区域名默认是实体的完整类名，可以通过@Cache(region = "...")指定。
+ *
+ * 最大数量只在使用Caffeine的时候有效，其他的JCache实现可以通过
+ * hibernate.javax.cache.uri指定它们自己的配置文件。
+ *
+ * 记录表的更新时间的区域不会过期，也不会被淘汰，否则查询缓存可能返回过期的结果。
+ */
+public class CacheRegionFactory extends JCacheRegionFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, Object> configValues;
+
+    @Override
+    protected void prepareForUse(SessionFactoryOptions settings, Map<String, Object> configValues) {
+        this.configValues = configValues;
+        super.prepareForUse(settings, configValues);
+    }
+
+    @Override
+    protected Cache<Object, Object> createCache(String regionName) {
+        CacheManager cacheManager = getCacheManager();
+        if (regionName.endsWith(RegionFactory.DEFAULT_UPDATE_TIMESTAMPS_REGION_UNQUALIFIED_NAME)) {
+            return cacheManager.createCache(regionName, new MutableConfiguration<>());
+        }
+        long ttl = longValue("swdc.data.cache.region." + regionName + ".ttl", longValue("swdc.data.cache.ttl", 0));
+        long maxSize = longValue("swdc.data.cache.region." + regionName + ".max-size", longValue("swdc.data.cache.max-size", 0));
+        if (cacheManager.getCachingProvider() instanceof CaffeineCachingProvider) {
+            CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+            if (ttl > 0) {
+                configuration.setExpireAfterWrite(OptionalLong.of(TimeUnit.SECONDS.toNanos(ttl)));
+            }
+            if (maxSize > 0) {
+                configuration.setMaximumSize(OptionalLong.of(maxSize));
+            }
+            return cacheManager.createCache(regionName, configuration);
+        }
+        MutableConfiguration<Object, Object> configuration = new MutableConfiguration<>();
+        if (ttl > 0) {
+            configuration.setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(new Duration(TimeUnit.SECONDS, ttl)));
+        }
+        return cacheManager.createCache(regionName, configuration);
+    }
+
+    private long longValue(String key, long defaultValue) {
+        Object value = configValues == null ? null : configValues.get(key);
+        if (value == null || value.toString().isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.swdc.data;
+
+/**
+ * 数据访问的监控指标。
+ *
+ * EMFProviderFactory在Repository的方法、Transactional的事务、EntityManager的创建
+ * 以及从连接池获取连接的时候调用这里的方法，实现类把它们记录到需要的地方。
+ * 默认使用InMemoryMetrics，也可以通过MicrometerMetrics交给Micrometer，
+ * 或者通过EMFProviderFactory.setMetrics替换为其他的实现。
+ *
+ * 这些方法会在查询的线程中同步调用，实现类应该是线程安全的，并且尽量快。
+ */
+public interface DataMetrics {
+
+    /**
+     * 不记录任何指标。
+     */
+    DataMetrics NONE = new DataMetrics() {
+    };
+
+    /**
+     * 设置到EMFProviderFactory的时候调用，可以在这里注册EntityManager数量等仪表。
+     *
+     * @param factory EMFProviderFactory
+     */
+    default void bind(EMFProviderFactory factory) {
+    }
+
+    /**
+     * 一次Repository方法的调用。
+     *
+     * @param repository Repository接口的名称
+     * @param method 方法名
+     * @param nanos 耗时，纳秒
+     * @param rows 返回的行数，修改语句是影响的行数，流式的结果是0
+     * @param failed 是否失败
+     */
+    default void repositoryCall(String repository, String method, long nanos, long rows, boolean failed) {
+    }
+
+    /**
+     * 一次由Transactional开启的事务，重试的每一次都会单独记录。
+     *
+     * @param method 方法的名称
+     * @param nanos 耗时，纳秒
+     * @param rolledBack 是否被回滚
+     */
+    default void transaction(String method, long nanos, boolean rolledBack) {
+    }
+
+    /**
+     * 创建了一个EntityManager。
+     */
+    default void entityManagerCreated() {
+    }
+
+    /**
+     * 从连接池获取了一个连接。
+     *
+     * @param nanos 等待的时间，纳秒
+     */
+    default void connectionAcquired(long nanos) {
+    }
+
+    /**
+     * 等待连接超时。
+     */
+    default void connectionTimeout() {
+    }
+
+}
@@ -1,23 +1,34 @@
 package org.swdc.data;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceUnitUtil;
 import jakarta.persistence.Query;
-import org.hibernate.proxy.HibernateProxy;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
+import jakarta.persistence.metamodel.EntityType;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.persister.entity.EntityPersister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.swdc.data.anno.Modify;
-import org.swdc.data.anno.Param;
 import org.swdc.data.anno.SQLQuery;
-import org.swdc.data.anno.SQLQueryFactory;
 import org.swdc.ours.common.type.Converter;
 import org.swdc.ours.common.type.Converters;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository<E, ID> {
 
@@ -27,221 +38,827 @@ public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    /**
+     * 只加载EntityGraph中的关联的查询提示。
+     */
+    private static final String FETCH_GRAPH = "jakarta.persistence.fetchgraph";
+
     private Converters converters = new Converters();
 
-    private Map<Class, SQLFactory> sqlFactoryMap = new HashMap<>();
+    private Map<Class, SQLFactory> sqlFactoryMap = new ConcurrentHashMap<>();
+
+    private Map<Method, InvocationPlan> invocationPlans = new ConcurrentHashMap<>();
+
+    /**
+     * 删除实体的时候是否需要逐个删除，第一次删除的时候检查。
+     */
+    private volatile Boolean entityRemove;
+
+    /**
+     * Repository接口，记录监控指标和诊断信息的时候使用。
+     */
+    private volatile Class repositoryType = DefaultRepository.class;
+
+    private volatile String repositoryName = DefaultRepository.class.getSimpleName();
 
 
     public void init(EMFProviderFactory module, Class<E> eClass) {
         this.manager = module;
         this.eClass = eClass;
+        // 编译期生成的实现类直接实现Repository接口，动态代理的接口在第一次调用的时候确定
+        Class repository = getClass();
+        for (Class type : getClass().getInterfaces()) {
+            if (type != JPARepository.class && JPARepository.class.isAssignableFrom(type)) {
+                repository = type;
+                break;
+            }
+        }
+        repository(repository);
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        EntityManager manager = this.manager.getEntityManager();
-
-        String name = method.getName();
-        if (name.equals("getOne") || name.equals("getAll")
-                || name.equals("removeAll") || name.equals("save") || name.equals("remove")) {
-            try {
-                return method.invoke(this,args);
-            } catch (Exception e) {
-                logger.error("failed to execute method, ",e);
+        InvocationPlan plan = plan(method);
+        switch (plan.getKind()) {
+            case DELEGATE:
+                if (method.getDeclaringClass() == Object.class) {
+                    return plan.getTarget().invoke(this, args);
+                }
+                if (repositoryType == DefaultRepository.class) {
+                    repository(proxy.getClass().getInterfaces()[0]);
+                }
+                try {
+                    // 内置的方法自己记录监控指标和诊断信息
+                    return plan.getTarget().invoke(this,args);
+                } catch (Exception e) {
+                    logger.error("failed to execute method, ",e);
+                    return null;
+                }
+            case QUERY:
+            case QUERY_FACTORY:
+                return execute(plan, args);
+            default:
                 return null;
+        }
+    }
+
+    private void repository(Class type) {
+        this.repositoryName = type.getSimpleName();
+        this.repositoryType = type;
+    }
+
+    /**
+     * 获取方法的调用计划，计划只在方法第一次被调用的时候创建。
+     *
+     * @param method Repository接口的方法
+     * @return 调用计划
+     */
+    private InvocationPlan plan(Method method) {
+        InvocationPlan plan = invocationPlans.get(method);
+        if (plan == null) {
+            plan = invocationPlans.computeIfAbsent(method, m -> InvocationPlan.create(m, eClass));
+        }
+        return plan;
+    }
+
+    /**
+     * 执行SQLQuery或SQLQueryFactory声明的查询。
+     *
+     * 本方法提供给编译期生成的Repository实现类使用，
+     * 它们直接调用这里，不需要再经过动态代理。
+     *
+     * @param method Repository接口中的方法
+     * @param args 调用参数
+     * @return 查询结果
+     */
+    protected Object query(Method method, Object[] args) {
+        InvocationPlan plan = plan(method);
+        if (plan.getKind() != InvocationPlan.Kind.QUERY && plan.getKind() != InvocationPlan.Kind.QUERY_FACTORY) {
+            return null;
+        }
+        return execute(plan, args);
+    }
+
+    /**
+     * 查找Repository接口的方法，提供给编译期生成的Repository实现类使用。
+     *
+     * @param type Repository接口
+     * @param name 方法名
+     * @param parameterTypes 参数类型
+     * @return 方法
+     */
+    protected static Method method(Class type, String name, Class... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("can not find repository method: " + name, e);
+        }
+    }
+
+    private Object execute(InvocationPlan plan, Object[] args) {
+        if (!plan.isAsync()) {
+            return execute(plan, args, false);
+        }
+        if (plan.getShape() == InvocationPlan.ResultShape.STREAM) {
+            // 流在任务的工作单元结束后就不能再读取了
+            logger.error("stream query " + plan.getMethod().getName() + " can not return CompletableFuture.");
+            return CompletableFuture.completedFuture(null);
+        }
+        // 任务在自己的工作单元中执行，参数中的实体会跨线程使用，调用者在结果返回之前不应该再修改它们
+        return this.manager.unitOfWorkAsync(() -> execute(plan, args, true));
+    }
+
+    /**
+     * 执行查询并记录监控指标。
+     *
+     * @param task 是否在为异步方法开启的工作单元中执行
+     */
+    private Object execute(InvocationPlan plan, Object[] args, boolean task) {
+        Diagnostics.Scope scope = Diagnostics.begin(plan.getMethod().getDeclaringClass(), plan.getMethod().getName());
+        long start = System.nanoTime();
+        boolean[] failure = new boolean[1];
+        Object result = null;
+        try {
+            if (task) {
+                result = execute(plan, args, true, failure);
+            } else if (this.manager.requiresUnitOfWork()) {
+                if (plan.getShape() == InvocationPlan.ResultShape.STREAM) {
+                    // 流在工作单元结束后就不能再读取了
+                    logger.error("stream query " + plan.getMethod().getName() + " must be called in a unit of work.");
+                    failure[0] = true;
+                    return Stream.empty();
+                }
+                result = withinUnitOfWork(() -> execute(plan, args, true, failure));
+            } else {
+                result = execute(plan, args, false, failure);
             }
+            return result;
+        } finally {
+            long rows = rows(result, plan.isModify());
+            record(plan.getRepositoryName(), plan.getMethod().getName(), start, rows, failure[0]);
+            Diagnostics.end(scope, args, rows);
+        }
+    }
+
+    /**
+     * 记录一次Repository方法的调用。
+     */
+    private void record(String repository, String method, long start, long rows, boolean failed) {
+        DataMetrics metrics = manager.getMetrics();
+        if (metrics == DataMetrics.NONE) {
+            return;
         }
+        metrics.repositoryCall(repository, method, System.nanoTime() - start, rows, failed);
+    }
+
+    /**
+     * 执行内置方法并记录这次调用，编译期生成的实现类和动态代理都会经过这里。
+     *
+     * @param method 方法名
+     * @param arg 诊断模式下记录的参数
+     * @param call 方法的实现
+     * @param rows 从结果中计算行数
+     */
+    private <R> R measured(String method, Object arg, Supplier<R> call, ToLongFunction<R> rows) {
+        Diagnostics.Scope scope = Diagnostics.begin(repositoryType, method);
+        long start = System.nanoTime();
+        R result = null;
+        boolean failed = true;
         try {
-            Object.class.getMethod(method.getName(),method.getParameterTypes());
-            return method.invoke(this,args);
-        } catch (Exception ex) {
+            result = call.get();
+            failed = false;
+            return result;
+        } finally {
+            long count = failed ? 0 : rows.applyAsLong(result);
+            record(repositoryName, method, start, count, failed);
+            if (scope != null) {
+                Diagnostics.end(scope, arg == null ? null : new Object[] { arg }, count);
+            }
         }
-        Query query = resolveByQuery(manager, method, args);
-        Modify modify = method.getAnnotation(Modify.class);
-        if (query != null) {
-            // 判断事务是否是在此处开启的，如果是的话，那本方法应该负责释放他
-            boolean autoCommit = false;
-            if (!manager.getTransaction().isActive()) {
+    }
+
+    /**
+     * 结果中的行数，修改语句返回的数字是影响的行数，流式的结果无法预先知道，按0计算。
+     */
+    private static long rows(Object result, boolean modify) {
+        if (result == null || result instanceof Stream) {
+            return 0;
+        }
+        if (result instanceof Collection) {
+            return ((Collection) result).size();
+        }
+        if (result instanceof Slice) {
+            return ((Slice) result).getNumberOfElements();
+        }
+        if (result instanceof Number && modify) {
+            return ((Number) result).longValue();
+        }
+        return 1;
+    }
+
+    /**
+     * 执行查询。
+     *
+     * 不是Modify的查询，如果事务是为它开启的，并且EntityManager在查询结束后就会被关闭
+     * （隐式的上下文，或者为本次查询开启的工作单元），会在只读的会话中执行，
+     * 不再保存快照、做脏检查和flush。调用者的工作单元中加载的实体还可能会被修改，
+     * 这时依然按照读写的方式执行。逐行处理的查询允许回调修改实体，也不使用只读的会话。
+     *
+     * @param ownUnitOfWork 工作单元是否是为本次查询开启的
+     * @param failure 查询失败的时候，它的第一个元素被设置为true
+     */
+    private Object execute(InvocationPlan plan, Object[] args, boolean ownUnitOfWork, boolean[] failure) {
+        EntityManager manager = this.manager.getEntityManager();
+        if (manager == null) {
+            logger.error("no entity manager at current thread");
+            failure[0] = true;
+            return null;
+        }
+        Query query = resolveByQuery(manager, plan, args);
+        if (query == null) {
+            failure[0] = true;
+            return null;
+        }
+        boolean modify = plan.isModify();
+        // 判断事务是否是在此处开启的，如果是的话，那本方法应该负责释放他
+        boolean autoCommit = false;
+        ReadOnlySession readOnly = null;
+        if (!manager.getTransaction().isActive()) {
+            // 逐行处理和Stream的调用者可能修改读到的实体，这些修改在清空持久化上下文之前flush，不能使用只读的会话
+            boolean streaming = plan.isCallback() || plan.getShape() == InvocationPlan.ResultShape.STREAM;
+            boolean readOnlyQuery = !modify && !streaming && (ownUnitOfWork || !this.manager.isScoped(manager));
+            // 只读的查询从只读副本获取事务的连接，已经在事务中的查询使用事务的连接，可以读到事务中的修改
+            boolean route = ReadRouting.route(readOnlyQuery);
+            try {
                 manager.getTransaction().begin();
                 autoCommit = true;
+                if (readOnlyQuery) {
+                    readOnly = ReadOnlySession.begin(manager, true);
+                }
+            } finally {
+                ReadRouting.restore(route);
             }
+        }
+        // 流式的结果在关闭的时候才结束事务
+        boolean deferred = false;
 
-            try {
-                Class returnClazz = method.getReturnType();
-                if (Set.class.isAssignableFrom(returnClazz)) {
-                    List list = query.getResultList();
-                    if (list == null || list.size() == 0) {
-                        return Collections.emptyList();
+        try {
+            if (plan.isCallback()) {
+                long count = StreamingResults.forEach(manager, query, eClass, fetchSize(), clearInterval(autoCommit), plan.getConsumer(args));
+                if (plan.getShape() != InvocationPlan.ResultShape.NUMBER) {
+                    return null;
+                }
+                Class returnClazz = plan.getReturnType();
+                return returnClazz == int.class || returnClazz == Integer.class ? (Object) (int) count : (Object) count;
+            }
+            List list = null;
+            switch (plan.getShape()) {
+                case STREAM:
+                    Stream stream = StreamingResults.stream(manager, query, eClass, fetchSize(), clearInterval(autoCommit));
+                    if (autoCommit) {
+                        deferred = true;
+                        ReadOnlySession session = readOnly;
+                        stream = (Stream) stream.onClose(() -> {
+                            complete(manager);
+                            if (session != null) {
+                                session.close();
+                            }
+                        });
                     }
-                    return list.stream().collect(Collectors.toSet());
-                } else if (List.class.isAssignableFrom(returnClazz)) {
-                    List list = query.getResultList();
+                    return stream;
+                case SET:
+                    list = query.getResultList();
                     if (list == null || list.size() == 0) {
-                        return Collections.emptyList();
+                        return Collections.emptySet();
                     }
-                    return list;
-                } else if (Collection.class.isAssignableFrom(returnClazz)) {
-                    List list = query.getResultList();
+                    return new HashSet<>(list);
+                case LIST:
+                case COLLECTION:
+                    list = query.getResultList();
                     if (list == null || list.size() == 0) {
                         return Collections.emptyList();
                     }
                     return list;
-                } else if (returnClazz == eClass) {
-                    List list = query.getResultList();
+                case PAGE:
+                    Page page = page(manager, query, plan, args);
+                    fetchAfterPaging(manager, page.getContent(), plan, args);
+                    return page;
+                case SLICE:
+                    Slice slice = slice(query, plan.getPageable(args));
+                    fetchAfterPaging(manager, slice.getContent(), plan, args);
+                    return slice;
+                case ENTITY:
+                    // 只需要一行，不再读取多余的数据
+                    query.setMaxResults(1);
+                    list = query.getResultList();
                     if (list == null || list.size() == 0) {
                         return null;
                     }
-                    return list.get(query.getFirstResult());
-                } else if (returnClazz == Integer.class|| returnClazz == int.class || returnClazz == Long.class || returnClazz == long.class) {
-                    if (modify == null ) {
-                        Object result = query.getSingleResult();
-                        if (result != null) {
-                            if (result.getClass() == returnClazz) {
-                                return result;
-                            } else {
-                                Converter converter = converters.getConverter(returnClazz,result.getClass());
-                                if (converter == null) {
-                                    return null;
-                                }
-                                return converter.convert(result);
-                            }
-                        }
-                    } else {
+                    fetchAfterPaging(manager, list, plan, args);
+                    return list.get(0);
+                case NUMBER:
+                    if (modify) {
                         return query.executeUpdate();
                     }
-                } else {
-                    if (modify != null) {
+                    Object result = query.getSingleResult();
+                    if (result == null) {
+                        return null;
+                    }
+                    Class returnClazz = plan.getReturnType();
+                    if (result.getClass() == returnClazz) {
+                        return result;
+                    }
+                    Converter converter = converters.getConverter(returnClazz,result.getClass());
+                    if (converter == null) {
+                        return null;
+                    }
+                    return converter.convert(result);
+                default:
+                    if (modify) {
                         query.executeUpdate();
                     } else {
                         query.getResultList();
                     }
+                    return null;
+            }
+        } catch (Exception ex) {
+            failure[0] = true;
+            // 回滚事务
+            if (autoCommit) {
+                manager.getTransaction().rollback();
+                this.manager.release(manager);
+            } else {
+                Transaction.failed(ex);
+            }
+            logger.error("fail to execute query: " + plan.getMethod().getName(), ex);
+        } finally {
+            // 提交事务，失败的时候EntityManager可能已经被释放
+            if (!deferred && manager.isOpen() && manager.getTransaction().isActive()) {
+                if (readOnly == null) {
+                    manager.flush();
                 }
-                return null;
-            } catch (Exception ex) {
-                // 回滚事务
                 if (autoCommit) {
-                    manager.getTransaction().rollback();
-                    manager.close();
-                }
-                logger.error("fail to execute query: " + method.getName(), ex);
-            } finally {
-                // 提交事务
-                if (manager.getTransaction().isActive()) {
-                    manager.flush();
-                    if (autoCommit) {
-                        manager.getTransaction().commit();
-                        manager.close();
-                    }
+                    manager.getTransaction().commit();
+                    this.manager.release(manager);
                 }
             }
+            if (!deferred && readOnly != null) {
+                readOnly.close();
+            }
         }
         return null;
     }
 
-    public Query resolveByQuery(EntityManager em, Method method, Object[] args) {
+    private Page page(EntityManager manager, Query query, InvocationPlan plan, Object[] args) {
+        Pageable pageable = plan.getPageable(args);
+        if (pageable != null && pageable.isKeyset()) {
+            // count查询只能统计键之后剩余的行数，键集分页不统计总数
+            Slice slice = slice(query, pageable);
+            return new Page(slice.getContent(), pageable, slice.hasNext(), lastKey(slice.getContent(), pageable));
+        }
+        List list = query.getResultList();
+        long total = list.size();
+        if (pageable != null && (pageable.getOffset() > 0 || list.size() >= pageable.getSize())) {
+            // 第一页没有填满的时候，总数就是本页的行数，不需要count查询
+            if (plan.getCountQuery() == null) {
+                throw new RuntimeException("can not derive count query, please specify SQLQuery.countQuery");
+            }
+            Query count = manager.createQuery(plan.getCountQuery(), Long.class);
+            plan.bind(count, args);
+            if (plan.hasCountKeysetParameter()) {
+                count.setParameter(Pageable.KEYSET_PARAMETER, null);
+            }
+            total = ((Number) count.getSingleResult()).longValue();
+        }
+        return new Page(list, pageable, total, lastKey(list, pageable));
+    }
 
-        SQLQuery sqlQuery = method.getAnnotation(SQLQuery.class);
-        Query query = null;
+    private Slice slice(Query query, Pageable pageable) {
+        List list = query.getResultList();
+        // 分页的时候多读取了一行，用来判断是否还有下一页
+        boolean hasNext = pageable != null && list.size() > pageable.getSize();
+        if (hasNext) {
+            list = new ArrayList(list.subList(0, pageable.getSize()));
+        }
+        return new Slice(list, pageable, hasNext, lastKey(list, pageable));
+    }
 
-        if (sqlQuery == null) {
-            SQLQueryFactory factory = method.getAnnotation(SQLQueryFactory.class);
-            if (factory != null) {
-                try {
+    /**
+     * 读取最后一行的键，用于键集分页的下一页。
+     */
+    private Object lastKey(List list, Pageable pageable) {
+        if (pageable == null || !pageable.isKeyset() || list.isEmpty()) {
+            return null;
+        }
+        Object last = list.get(list.size() - 1);
+        EntityMetadata metadata = EntityMetadata.of(last.getClass());
+        Field keyField = null;
+        Class type = metadata.getType();
+        while (pageable.getKeyProperty() != null && keyField == null && type != null && type != Object.class) {
+            try {
+                keyField = type.getDeclaredField(pageable.getKeyProperty());
+            } catch (NoSuchFieldException e) {
+                type = type.getSuperclass();
+            }
+        }
+        try {
+            if (keyField == null) {
+                return metadata.getId(last);
+            }
+            keyField.setAccessible(true);
+            return keyField.get(last);
+        } catch (Exception e) {
+            logger.error("can not read the key of keyset page", e);
+            return null;
+        }
+    }
 
-                    SQLFactory sqlFactory = null;
+    /**
+     * 把分页参数和FetchPlan应用到查询上。
+     *
+     * @return 是否成功，键集分页的查询没有声明keyset参数的时候失败
+     */
+    private boolean applyArguments(EntityManager em, Query query, InvocationPlan plan, Object[] args) {
+        FetchPlan fetchPlan = plan.getFetchPlan(args);
+        if (fetchPlan != null && plan.isEntityResult() && deferredFetchPlan(plan, args) == null) {
+            // 只有返回实体的查询才能使用EntityGraph
+            query.setHint(FETCH_GRAPH, fetchPlan.toEntityGraph(em, eClass));
+        }
+        Pageable pageable = plan.getPageable(args);
+        if (plan.hasKeysetParameter()) {
+            query.setParameter(Pageable.KEYSET_PARAMETER, pageable == null ? null : pageable.getKey());
+        }
+        if (pageable == null) {
+            return true;
+        }
+        if (pageable.isKeyset() && !plan.hasKeysetParameter()) {
+            logger.error("keyset paging requires a :" + Pageable.KEYSET_PARAMETER + " parameter in query.");
+            logger.error("method: " + plan.getMethod().getName());
+            return false;
+        }
+        if (!pageable.isKeyset()) {
+            query.setFirstResult((int) pageable.getOffset());
+        }
+        int size = pageable.getSize();
+        // Slice和键集分页的Page多读取一行，用来判断是否还有下一页
+        boolean probe = plan.getShape() == InvocationPlan.ResultShape.SLICE || pageable.isKeyset();
+        query.setMaxResults(probe ? size + 1 : size);
+        return true;
+    }
 
-                    if (sqlFactoryMap.containsKey(factory.value())) {
-                        sqlFactory = sqlFactoryMap.get(factory.value());
-                    } else {
-                        sqlFactory = factory.value()
-                                .newInstance();
-                        sqlFactoryMap.put(factory.value(),sqlFactory);
-                    }
+    /**
+     * 内置的查询方法不在事务中的时候从只读副本获取连接。
+     * 没有事务的时候Hibernate在每次操作之后就会归还连接，之后的写入依然使用主库。
+     */
+    private <R> R routed(EntityManager entityManager, Supplier<R> reading) {
+        boolean route = ReadRouting.route(!entityManager.getTransaction().isActive());
+        try {
+            return reading.get();
+        } finally {
+            ReadRouting.restore(route);
+        }
+    }
 
-                    Map<String,Object> params = new HashMap<>();
-                    Parameter[] parameters = method.getParameters();
-                    for(int index = 0; index < parameters.length; index ++) {
-                        Param param = parameters[index].getAnnotation(Param.class);
-                        if (param != null) {
-                            params.put(param.value(),args[index]);
-                        }
-                    }
+    /**
+     * 集合的fetch join会让一个实体占用多行，限制了行数的查询（分页和只返回一个实体的查询）
+     * 再fetch集合的时候，Hibernate只能读取全部的行之后在内存中分页（HHH90003004）。
+     * 这时FetchPlan不应用到分页的查询上，而是在分页之后通过Id再查询一次，加载其中的关联。
+     *
+     * @return 需要在分页之后加载的FetchPlan，不需要的时候为null
+     */
+    private FetchPlan deferredFetchPlan(InvocationPlan plan, Object[] args) {
+        FetchPlan fetchPlan = plan.getFetchPlan(args);
+        if (fetchPlan == null || !plan.isEntityResult()) {
+            return null;
+        }
+        boolean limited = plan.getPageable(args) != null || plan.getShape() == InvocationPlan.ResultShape.ENTITY;
+        return limited && fetchPlan.fetchesCollection(eClass) ? fetchPlan : null;
+    }
 
-                    query = sqlFactory.createQuery(em, new SQLParams(params));
-                    if (query == null) {
-                        return null;
-                    }
+    /**
+     * 为分页查询读取到的实体加载FetchPlan中的关联，
+     * 实体已经在持久化上下文中，第二次查询只会初始化它们的关联。
+     */
+    private void fetchAfterPaging(EntityManager manager, List list, InvocationPlan plan, Object[] args) {
+        FetchPlan fetchPlan = deferredFetchPlan(plan, args);
+        if (fetchPlan == null || list.isEmpty()) {
+            return;
+        }
+        PersistenceUnitUtil util = manager.getEntityManagerFactory().getPersistenceUnitUtil();
+        List ids = new ArrayList(list.size());
+        for (Object item : list) {
+            ids.add(util.getIdentifier(item));
+        }
+        String fetchQuery = "select e from " + manager.getMetamodel().entity(eClass).getName() +
+                " e where e." + getIdField(eClass).getName() + " in :ids";
+        manager.createQuery(fetchQuery, eClass)
+                .setHint(FETCH_GRAPH, fetchPlan.toEntityGraph(manager, eClass))
+                .setParameter("ids", ids)
+                .getResultList();
+    }
 
-                } catch (Exception e) {
-                    return null;
-                }
+    /**
+     * 结束流式查询开启的事务。
+     */
+    private void complete(EntityManager manager) {
+        try {
+            if (manager.isOpen() && manager.getTransaction().isActive()) {
+                manager.getTransaction().commit();
             }
-        } else {
+        } catch (Exception e) {
+            logger.error("fail to complete stream query", e);
+        } finally {
+            this.manager.release(manager);
+        }
+    }
 
-            if (method.getReturnType() == Integer.class || method.getReturnType() == int.class) {
-                // 聚合函数
-                query = em.createQuery(sqlQuery.value(),Integer.class);
-            } else if (method.getReturnType() == Long.class || method.getReturnType() == long.class) {
-                // 聚合函数
-                query = em.createQuery(sqlQuery.value(),Long.class);
-            } else if (method.getReturnType() == eClass) {
-                query = em.createQuery(sqlQuery.value(),eClass);
-            } else if (Collection.class.isAssignableFrom(method.getReturnType())){
-                query = em.createQuery(sqlQuery.value());
-            } else {
-                query = em.createQuery(sqlQuery.value());
-            }
+    private int fetchSize() {
+        return manager.intProperty("swdc.data.stream.fetch-size", 500);
+    }
 
-            Parameter[] params = method.getParameters();
-            if (query.getParameters().size() != method.getParameters().length) {
-                logger.error("can not create query because parameters size dose not matches");
-                logger.error("method: " + method.getName());
-                return null;
-            }
-            for (int index = 0; index <params.length; index ++) {
-                Param qParam = params[index].getAnnotation(Param.class);
-                String name = qParam.value();
-                if (qParam.searchBy()) {
-                    query.setParameter(name,"%" + args[index] + "%");
-                } else {
-                    query.setParameter(name,args[index]);
+    /**
+     * 事务是为本次查询开启的时候可以定期清空持久化上下文，
+     * 否则只能detach本次查询返回的实体，以免影响调用者已经加载的实体。
+     */
+    private int clearInterval(boolean ownTransaction) {
+        return ownTransaction ? manager.intProperty("swdc.data.stream.clear-interval", 1000) : 0;
+    }
+
+    public Query resolveByQuery(EntityManager em, Method method, Object[] args) {
+        return resolveByQuery(em, plan(method), args);
+    }
+
+    private Query resolveByQuery(EntityManager em, InvocationPlan plan, Object[] args) {
+
+        if (plan.getKind() == InvocationPlan.Kind.QUERY_FACTORY) {
+            try {
+                SQLFactory sqlFactory = sqlFactoryMap.get(plan.getFactoryType());
+                if (sqlFactory == null) {
+                    sqlFactory = sqlFactoryMap.computeIfAbsent(plan.getFactoryType(), this::createFactory);
                 }
+                Query query = sqlFactory.createQuery(em, plan.params(args));
+                if (query == null || !applyArguments(em, query, plan, args)) {
+                    return null;
+                }
+                return query;
+            } catch (Exception e) {
+                return null;
             }
-            if (sqlQuery.firstResult() != -1) {
-                query.setFirstResult(sqlQuery.firstResult());
-            }
-            if(sqlQuery.maxResult() != -1) {
-                query.setMaxResults(sqlQuery.maxResult());
-            }
+        }
 
+        if (plan.getKind() != InvocationPlan.Kind.QUERY) {
+            return null;
+        }
+
+        SQLQuery sqlQuery = plan.getSqlQuery();
+        if (!plan.isBindable()) {
+            logger.error("can not create query because some parameters are not annotated with Param");
+            logger.error("query: " + sqlQuery.value());
+            return null;
+        }
+
+        Query query = null;
+        if (plan.getQueryType() != null) {
+            query = em.createQuery(sqlQuery.value(),plan.getQueryType());
+        } else {
+            query = em.createQuery(sqlQuery.value());
+        }
+
+        if (query.getParameters().size() != plan.getParameterCount()) {
+            logger.error("can not create query because parameters size dose not matches");
+            logger.error("query: " + sqlQuery.value());
+            return null;
         }
+        plan.bind(query, args);
 
+        if (sqlQuery.firstResult() != -1) {
+            query.setFirstResult(sqlQuery.firstResult());
+        }
+        if(sqlQuery.maxResult() != -1) {
+            query.setMaxResults(sqlQuery.maxResult());
+        }
+        if (sqlQuery.cacheable() && !plan.isModify()) {
+            query.setHint(HibernateHints.HINT_CACHEABLE, true);
+            if (!sqlQuery.cacheRegion().isBlank()) {
+                query.setHint(HibernateHints.HINT_CACHE_REGION, sqlQuery.cacheRegion());
+            }
+        }
+        if (!applyArguments(em, query, plan, args)) {
+            return null;
+        }
         return query;
     }
 
+    private SQLFactory createFactory(Class<? extends SQLFactory> type) {
+        try {
+            return type.getConstructor().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("can not create sql factory: " + type.getName(), e);
+        }
+    }
+
     @Override
     public E getOne(ID id) {
+        return measured("getOne", id, () -> find(id), result -> rows(result, false));
+    }
+
+    private E find(ID id) {
+        if (manager.requiresUnitOfWork()) {
+            return withinUnitOfWork(() -> find(id));
+        }
         EntityManager entityManager = this.manager.getEntityManager();
         if (entityManager == null) {
             logger.error("no entity manager at current thread");
             return null;
         }
-        return entityManager.find(eClass,id);
+        return routed(entityManager, () -> entityManager.find(eClass,id));
+    }
+
+    @Override
+    public E getOne(ID id, FetchPlan plan) {
+        return measured("getOne", id, () -> find(id, plan), result -> rows(result, false));
+    }
+
+    private E find(ID id, FetchPlan plan) {
+        if (manager.requiresUnitOfWork()) {
+            return withinUnitOfWork(() -> find(id, plan));
+        }
+        EntityManager entityManager = this.manager.getEntityManager();
+        if (entityManager == null) {
+            logger.error("no entity manager at current thread");
+            return null;
+        }
+        if (plan == null) {
+            return routed(entityManager, () -> entityManager.find(eClass,id));
+        }
+        Map<String, Object> hints = new HashMap<>();
+        hints.put(FETCH_GRAPH, plan.toEntityGraph(entityManager, eClass));
+        return routed(entityManager, () -> entityManager.find(eClass, id, hints));
+    }
+
+    @Override
+    public List<E> getAll(FetchPlan plan) {
+        return measured("getAll", plan, () -> list(plan), result -> rows(result, false));
+    }
+
+    private List<E> list(FetchPlan plan) {
+        if (manager.requiresUnitOfWork()) {
+            return withinUnitOfWork(() -> list(plan));
+        }
+        EntityManager entityManager = this.manager.getEntityManager();
+        if (entityManager == null) {
+            logger.error("no entity manager at current thread");
+            return new ArrayList<>();
+        }
+        TypedQuery<E> query = entityManager.createQuery("from " + entityManager.getMetamodel().entity(eClass).getName(), eClass);
+        if (plan != null) {
+            query.setHint(FETCH_GRAPH, plan.toEntityGraph(entityManager, eClass));
+        }
+        return routed(entityManager, query::getResultList);
     }
 
     @Override
     public List<E> getAll() {
+        return measured("getAll", null, () -> list(), result -> rows(result, false));
+    }
+
+    private List<E> list() {
+        if (manager.requiresUnitOfWork()) {
+            return withinUnitOfWork(this::list);
+        }
         EntityManager entityManager = this.manager.getEntityManager();
         if (entityManager == null) {
             logger.error("no entity manager at current thread");
             return new ArrayList<>();
         }
-        Query query = entityManager.createQuery("from " + eClass.getSimpleName(),eClass);
-        return query.getResultList();
+        TypedQuery<E> query = entityManager.createQuery("from " + entityManager.getMetamodel().entity(eClass).getName(),eClass);
+        return routed(entityManager, query::getResultList);
+    }
+
+    @Override
+    public Page<E> getAll(Pageable pageable) {
+        return measured("getAll", pageable, () -> list(pageable), result -> rows(result, false));
+    }
+
+    private Page<E> list(Pageable pageable) {
+        if (manager.requiresUnitOfWork()) {
+            return withinUnitOfWork(() -> list(pageable));
+        }
+        EntityManager entityManager = this.manager.getEntityManager();
+        if (entityManager == null) {
+            logger.error("no entity manager at current thread");
+            return null;
+        }
+        if (pageable == null) {
+            List<E> all = list();
+            return new Page<>(all, null, all.size(), null);
+        }
+        return routed(entityManager, () -> pageAll(entityManager, pageable));
+    }
+
+    private Page<E> pageAll(EntityManager entityManager, Pageable pageable) {
+        Field idField = getIdField(eClass);
+        String keyProperty = pageable.getKeyProperty() == null ? idField.getName() : pageable.getKeyProperty();
+
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<E> criteria = builder.createQuery(eClass);
+        Root<E> root = criteria.from(eClass);
+        if (pageable.isKeyset() && pageable.getKey() != null) {
+            criteria.where(builder.greaterThan(root.get(keyProperty), (Comparable) pageable.getKey()));
+        }
+        criteria.orderBy(builder.asc(root.get(keyProperty)));
+
+        TypedQuery<E> query = entityManager.createQuery(criteria);
+        if (pageable.isKeyset()) {
+            // 键集分页不统计总数，多读取一行判断是否还有下一页
+            query.setMaxResults(pageable.getSize() + 1);
+            List<E> content = query.getResultList();
+            boolean hasNext = content.size() > pageable.getSize();
+            if (hasNext) {
+                content = new ArrayList<>(content.subList(0, pageable.getSize()));
+            }
+            return new Page<>(content, pageable, hasNext, lastKey(content, pageable));
+        }
+        query.setFirstResult((int) pageable.getOffset());
+        query.setMaxResults(pageable.getSize());
+        List<E> content = query.getResultList();
+
+        long total = content.size();
+        // 只有第一页没有填满的时候，总数就是本页的行数
+        if (content.size() >= pageable.getSize() || pageable.getOffset() > 0) {
+            CriteriaQuery<Long> countCriteria = builder.createQuery(Long.class);
+            countCriteria.select(builder.count(countCriteria.from(eClass)));
+            total = entityManager.createQuery(countCriteria).getSingleResult();
+        }
+        return new Page<>(content, pageable, total, lastKey(content, pageable));
+    }
+
+    @Override
+    public Stream<E> streamAll() {
+        return measured("streamAll", null, () -> stream(), result -> rows(result, false));
+    }
+
+    private Stream<E> stream() {
+        EntityManager entityManager = this.manager.getEntityManager();
+        if (entityManager == null) {
+            logger.error("stream query must be called in a unit of work.");
+            return Stream.empty();
+        }
+        boolean autoCommit = false;
+        if (!entityManager.getTransaction().isActive()) {
+            entityManager.getTransaction().begin();
+            autoCommit = true;
+        }
+        try {
+            Query query = entityManager.createQuery("from " + entityManager.getMetamodel().entity(eClass).getName(),eClass);
+            Stream<E> stream = StreamingResults.stream(entityManager, query, eClass, fetchSize(), clearInterval(autoCommit));
+            if (autoCommit) {
+                stream = stream.onClose(() -> complete(entityManager));
+            }
+            return stream;
+        } catch (Exception e) {
+            if (autoCommit) {
+                entityManager.getTransaction().rollback();
+                this.manager.release(entityManager);
+            } else {
+                Transaction.failed(e);
+            }
+            logger.error("fail to stream entities: " + eClass.getSimpleName(), e);
+            return Stream.empty();
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<? super E> consumer) {
+        measured("forEach", null, () -> {
+            each(consumer);
+            return null;
+        }, result -> 0);
+    }
+
+    private void each(Consumer<? super E> consumer) {
+        if (manager.requiresUnitOfWork()) {
+            withinUnitOfWork(() -> {
+                each(consumer);
+                return null;
+            });
+            return;
+        }
+        try (Stream<E> stream = stream()) {
+            stream.forEachOrdered(consumer);
+        }
     }
 
     @Override
     public E save(E entry) {
+        return measured("save", entry, () -> store(entry), result -> rows(result, false));
+    }
+
+    private E store(E entry) {
+        if (manager.requiresUnitOfWork()) {
+            E target = entry;
+            return withinUnitOfWork(() -> store(target));
+        }
         EntityManager entityManager = this.manager.getEntityManager();
         if (entityManager == null) {
             logger.error("no entity manager at current thread");
@@ -258,7 +875,6 @@ public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository
             return null;
         }
         try {
-            idField.setAccessible(true);
             Object id = idField.get(entry);
             if (id == null) {
                 entityManager.persist(entry);
@@ -268,7 +884,7 @@ public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository
                 }
                 return entry;
             }
-            E entExisted = this.getOne((ID) id);
+            E entExisted = find((ID) id);
             if (entExisted == null) {
                 idField.set(entry, null);
                 entityManager.persist(entry);
@@ -285,53 +901,318 @@ public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository
             }
             return entry;
         } catch (Exception ex) {
+            if (!autoCommit) {
+                Transaction.failed(ex);
+            } else if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
             logger.error("error persistent entry: " + entry.getClass().getSimpleName(), ex);
             return null;
         }
     }
 
+    @Override
+    public List<E> saveAll(Collection<E> entities) {
+        return measured("saveAll", entities, () -> storeAll(entities), result -> rows(result, false));
+    }
+
+    private List<E> storeAll(Collection<E> entities) {
+        if (manager.requiresUnitOfWork()) {
+            return withinUnitOfWork(() -> storeAll(entities));
+        }
+        if (entities == null || entities.isEmpty()) {
+            return Collections.emptyList();
+        }
+        EntityManager entityManager = this.manager.getEntityManager();
+        if (entityManager == null) {
+            logger.error("no entity manager at current thread");
+            return null;
+        }
+        Field idField = getIdField(eClass);
+        if (idField == null) {
+            logger.error("no id field found");
+            return null;
+        }
+        boolean autoCommit = false;
+        if (!entityManager.getTransaction().isActive()) {
+            entityManager.getTransaction().begin();
+            autoCommit = true;
+        }
+        int flushInterval = Math.max(manager.intProperty("swdc.data.batch.flush-interval", 500), 1);
+        List<E> result = new ArrayList<>(entities.size());
+        List<E> chunk = new ArrayList<>(Math.min(flushInterval, entities.size()));
+        try {
+            String existQuery = "select e from " + entityManager.getMetamodel().entity(eClass).getName() +
+                    " e where e." + idField.getName() + " in :ids";
+            Iterator<E> iterator = entities.iterator();
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+                if (chunk.size() < flushInterval && iterator.hasNext()) {
+                    continue;
+                }
+                Set<E> managed = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (E item : chunk) {
+                    if (entityManager.contains(item)) {
+                        managed.add(item);
+                    }
+                }
+                List<E> saved = saveChunk(entityManager, chunk, idField, existQuery);
+                entityManager.flush();
+                // 即使事务是为本次保存开启的，EntityManager也可能是调用者的，
+                // 所以只移除本次保存的实体，调用者原本就在管理的实体保持不变
+                for (E item : saved) {
+                    if (!managed.contains(item)) {
+                        entityManager.detach(item);
+                    }
+                }
+                result.addAll(saved);
+                chunk.clear();
+            }
+            if (autoCommit) {
+                entityManager.getTransaction().commit();
+            }
+            return result;
+        } catch (Exception ex) {
+            if (!autoCommit) {
+                Transaction.failed(ex);
+            } else if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            logger.error("error persistent entries: " + eClass.getSimpleName(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * 保存一批实体，已经存在的实体通过一次IN查询加载到持久化上下文中，
+     * 之后的merge就不需要再逐个查询了。
+     */
+    private List<E> saveChunk(EntityManager entityManager, List<E> chunk, Field idField, String existQuery) throws IllegalAccessException {
+        // 通过EntityMetadata读取Id，Hibernate的代理的字段上是没有Id的
+        EntityMetadata metadata = EntityMetadata.of(eClass);
+        Set<Object> ids = new HashSet<>();
+        for (E item : chunk) {
+            Object id = metadata.getId(item);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        Set<Object> existed = new HashSet<>();
+        if (!ids.isEmpty()) {
+            List<E> loaded = entityManager.createQuery(existQuery, eClass)
+                    .setParameter("ids", ids)
+                    .getResultList();
+            for (E item : loaded) {
+                existed.add(metadata.getId(item));
+            }
+        }
+        List<E> saved = new ArrayList<>(chunk.size());
+        for (E item : chunk) {
+            Object id = metadata.getId(item);
+            if (id != null && existed.contains(id)) {
+                saved.add(entityManager.merge(item));
+                continue;
+            }
+            if (id != null) {
+                // 与save一致，数据库中不存在的实体按照新的实体保存
+                idField.set(item, null);
+            }
+            entityManager.persist(item);
+            saved.add(item);
+        }
+        return saved;
+    }
+
+    /**
+     * 作用域上下文中没有工作单元的时候，Repository的方法在自己的工作单元中执行，
+     * 工作单元结束后返回的实体将处于游离状态。
+     */
+    private <T> T withinUnitOfWork(Callable<T> task) {
+        try {
+            return manager.unitOfWork(task);
+        } catch (Exception e) {
+            logger.error("failed to execute in unit of work, ", e);
+            return null;
+        }
+    }
+
     private Field getIdField(Class target) {
-        return StatelessHelper.getIdField(target);
+        return EntityMetadata.of(target).getIdField();
     }
 
     @Override
     public void removeAll(Collection<E> entities) {
+        measured("removeAll", entities, () -> {
+            deleteAll(entities);
+            return null;
+        }, result -> 0);
+    }
+
+    private void deleteAll(Collection<E> entities) {
+        if (manager.requiresUnitOfWork()) {
+            withinUnitOfWork(() -> {
+                deleteAll(entities);
+                return null;
+            });
+            return;
+        }
+        if (entities == null || entities.isEmpty()) {
+            return;
+        }
+        EntityMetadata metadata = EntityMetadata.of(eClass);
+        if (metadata.getIdField() == null) {
+            logger.error("no id field found");
+            return;
+        }
+        List<ID> ids = new ArrayList<>(entities.size());
+        try {
+            for (E entity : entities) {
+                Object id = metadata.getId(entity);
+                if (id != null) {
+                    ids.add((ID) id);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("fail to read the id of entities", e);
+            return;
+        }
+        deleteAllById(ids);
+    }
+
+    @Override
+    public int removeAllById(Collection<ID> ids) {
+        return measured("removeAllById", ids, () -> deleteAllById(ids), Integer::longValue);
+    }
+
+    private int deleteAllById(Collection<ID> ids) {
+        if (manager.requiresUnitOfWork()) {
+            Integer removed = withinUnitOfWork(() -> deleteAllById(ids));
+            return removed == null ? 0 : removed;
+        }
+        if (ids == null || ids.isEmpty()) {
+            return 0;
+        }
         EntityManager entityManager = this.manager.getEntityManager();
         if (entityManager == null) {
             logger.error("no entity manager at current thread");
-            return;
+            return 0;
+        }
+        Field idField = getIdField(eClass);
+        if (idField == null) {
+            logger.error("no id field found");
+            return 0;
         }
         boolean autoCommit = false;
         if (!entityManager.getTransaction().isActive()) {
             autoCommit = true;
             entityManager.getTransaction().begin();
         }
-        for (E entity: entities) {
-            if (entity instanceof HibernateProxy) {
-                entityManager.refresh(entity);
-            }
-            try {
-                entityManager.remove(entity);
-            } catch (Exception ex) {
-                Field idField = getIdField(eClass);
-                idField.setAccessible(true);
-                try {
-                    ID id = (ID) idField.get(entity);
-                    E target = getOne(id);
-                    entityManager.remove(target);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+        int chunkSize = Math.max(manager.intProperty("swdc.data.batch.delete-size", 500), 1);
+        int removed = 0;
+        try {
+            String entityName = entityManager.getMetamodel().entity(eClass).getName();
+            boolean cascading = requiresEntityRemove(entityManager);
+            // 先把未提交的修改写入数据库，以免之后的删除与它们顺序错乱
+            entityManager.flush();
+            List<ID> chunk = new ArrayList<>(Math.min(chunkSize, ids.size()));
+            Iterator<ID> iterator = new LinkedHashSet<>(ids).iterator();
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+                if (chunk.size() < chunkSize && iterator.hasNext()) {
+                    continue;
                 }
+                if (cascading) {
+                    removed += removeChunkByEntity(entityManager, entityName, idField, chunk);
+                } else {
+                    removed += removeChunkById(entityManager, entityName, idField, chunk);
+                }
+                chunk.clear();
+            }
+            if (autoCommit) {
+                entityManager.getTransaction().commit();
+            }
+            return removed;
+        } catch (Exception e) {
+            if (!autoCommit) {
+                Transaction.failed(e);
+            } else if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            logger.error("fail to remove entities: " + eClass.getSimpleName(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * 通过一条DELETE语句删除一批实体，持久化上下文中已经存在的实体会先被移除。
+     */
+    private int removeChunkById(EntityManager entityManager, String entityName, Field idField, List<ID> chunk) {
+        SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        EntityPersister persister = session.getFactory().getMappingMetamodel().getEntityDescriptor(eClass);
+        PersistenceContext context = session.getPersistenceContextInternal();
+        for (ID id : chunk) {
+            Object managed = context.getEntity(session.generateEntityKey(id, persister));
+            if (managed != null) {
+                entityManager.detach(managed);
             }
         }
-        if(autoCommit) {
-            entityManager.getTransaction().commit();
+        return entityManager.createQuery("delete from " + entityName + " e where e." + idField.getName() + " in :ids")
+                .setParameter("ids", chunk)
+                .executeUpdate();
+    }
+
+    /**
+     * 需要级联删除或者有删除回调的实体，一批实体通过一次IN查询加载，再逐个删除。
+     */
+    private int removeChunkByEntity(EntityManager entityManager, String entityName, Field idField, List<ID> chunk) {
+        List<E> entities = entityManager.createQuery("select e from " + entityName + " e where e." + idField.getName() + " in :ids", eClass)
+                .setParameter("ids", chunk)
+                .getResultList();
+        for (E entity : entities) {
+            entityManager.remove(entity);
         }
+        entityManager.flush();
+        return entities.size();
+    }
 
+    /**
+     * DELETE语句不会触发级联删除、orphanRemoval和删除的回调，
+     * 实体（包括它的子类）有这些设置的时候需要逐个删除。
+     */
+    private boolean requiresEntityRemove(EntityManager entityManager) {
+        Boolean required = entityRemove;
+        if (required != null) {
+            return required;
+        }
+        required = false;
+        for (EntityType<?> type : entityManager.getMetamodel().getEntities()) {
+            Class javaType = type.getJavaType();
+            if (javaType != null && eClass.isAssignableFrom(javaType) && EntityMetadata.of(javaType).isEntityRemove()) {
+                required = true;
+                break;
+            }
+        }
+        entityRemove = required;
+        return required;
     }
 
     @Override
     public void remove(E entry) {
+        measured("remove", entry, () -> {
+            delete(entry);
+            return null;
+        }, result -> 0);
+    }
+
+    private void delete(E entry) {
+        if (manager.requiresUnitOfWork()) {
+            E target = entry;
+            withinUnitOfWork(() -> {
+                delete(target);
+                return null;
+            });
+            return;
+        }
         EntityManager entityManager = this.manager.getEntityManager();
         if (entityManager == null) {
             logger.error("no entity manager at current thread");
@@ -348,7 +1229,6 @@ public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository
             return;
         }
         try {
-            idField.setAccessible(true);
             Object id = idField.get(entry);
             if (id == null) {
                 logger.error("entity not persistent, can not remove now");
@@ -360,6 +1240,11 @@ public class DefaultRepository<E, ID> implements InvocationHandler,JPARepository
                 entityManager.getTransaction().commit();
             }
         } catch (Exception e) {
+            if (!autoCommit) {
+                Transaction.failed(e);
+            } else if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
             logger.error("fail to remove entity",e);
         }
     }
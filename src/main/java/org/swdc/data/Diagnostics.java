@@ -0,0 +1,202 @@
+package org.swdc.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.time.temporal.TemporalAccessor;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * 诊断模式，开启swdc.data.diagnostics后生效。
+ *
+ * Repository的方法、stateless复制和工作单元各自是一个范围，范围可以嵌套，
+ * 期间执行的JDBC语句通过StatementInspector记录到当前线程的范围以及它的外层范围中。
+ * 范围结束的时候：
+ * 耗时超过slow-threshold毫秒的，记录调用的参数、行数和执行的SQL；
+ * 同一条带参数的SELECT执行了repeat-threshold次以上的，作为可能的N+1查询记录下来，
+ * 这通常是在循环中触发了延迟加载，内层范围已经报告过的SQL外层不再重复报告。
+ *
+ * 在其他线程中执行的语句（例如并行的statelessAll）不会被计入调用者的范围。
+ */
+class Diagnostics {
+
+    private static final Logger logger = LoggerFactory.getLogger(Diagnostics.class);
+
+    /**
+     * 每个范围最多记录的不同SQL的数量
+     */
+    private static final int MAX_STATEMENTS = 256;
+
+    private static final int MAX_TEXT = 500;
+
+    private static final ThreadLocal<Scope> current = new ThreadLocal<>();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile long slowNanos = 500_000_000L;
+
+    private static volatile int repeatThreshold = 10;
+
+    private Diagnostics() {
+    }
+
+    static void configure(boolean enabled, long slowMillis, int repeatThreshold) {
+        Diagnostics.slowNanos = Math.max(slowMillis, 0) * 1_000_000L;
+        Diagnostics.repeatThreshold = Math.max(repeatThreshold, 2);
+        Diagnostics.enabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开始一个范围，没有开启诊断模式的时候返回null。
+     *
+     * @param type 范围所属的类型，例如Repository接口
+     * @param method 方法名
+     * @return 范围，结束的时候交给end
+     */
+    static Scope begin(Class<?> type, String method) {
+        if (!enabled) {
+            return null;
+        }
+        Scope scope = new Scope(type.getSimpleName() + "." + method, current.get());
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * 结束一个范围。
+     *
+     * @param scope begin返回的范围，可以是null
+     * @param args 调用的参数，可以是null
+     * @param rows 返回的行数，未知的时候是-1
+     */
+    static void end(Scope scope, Object[] args, long rows) {
+        if (scope == null) {
+            return;
+        }
+        if (scope.parent == null) {
+            current.remove();
+        } else {
+            current.set(scope.parent);
+        }
+        long elapsed = System.nanoTime() - scope.start;
+        if (elapsed > slowNanos) {
+            logger.warn("slow call " + scope.name + " took " + elapsed / 1_000_000 + "ms, rows: " + rows +
+                    ", statements: " + scope.total + ", parameters: " + text(args) +
+                    ", sql: " + abbreviate(String.join("; ", scope.counts.keySet())));
+        }
+        for (Map.Entry<String, int[]> entry : scope.counts.entrySet()) {
+            int count = entry.getValue()[0];
+            String sql = entry.getKey();
+            if (count < repeatThreshold || scope.reported.contains(sql) || !isRepeatedQuery(sql)) {
+                continue;
+            }
+            logger.warn("possible N+1 queries in " + scope.name + ": " + count +
+                    " identical statements of " + scope.total + ", sql: " + abbreviate(sql));
+            for (Scope parent = scope.parent; parent != null; parent = parent.parent) {
+                parent.reported.add(sql);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(scope.name + " executed " + scope.total + " statements in " + elapsed / 1000 + "us");
+        }
+    }
+
+    /**
+     * 由StatementInspector调用，记录当前线程执行的SQL。
+     */
+    static String inspect(String sql) {
+        for (Scope scope = current.get(); scope != null; scope = scope.parent) {
+            scope.total ++;
+            int[] count = scope.counts.get(sql);
+            if (count != null) {
+                count[0] ++;
+            } else if (scope.counts.size() < MAX_STATEMENTS) {
+                scope.counts.put(sql, new int[] { 1 });
+            }
+        }
+        return sql;
+    }
+
+    /**
+     * 只有带参数的SELECT才可能是N+1，获取序列值这类没有参数的语句本来就会重复执行。
+     */
+    private static boolean isRepeatedQuery(String sql) {
+        String trimmed = sql.stripLeading();
+        boolean select = trimmed.regionMatches(true, 0, "select", 0, 6) || trimmed.regionMatches(true, 0, "with", 0, 4);
+        return select && trimmed.indexOf('?') > 0;
+    }
+
+    private static String text(Object[] values) {
+        if (values == null) {
+            return "[]";
+        }
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        for (Object value : values) {
+            joiner.add(text(value));
+        }
+        return abbreviate(joiner.toString());
+    }
+
+    /**
+     * 参数中的实体和集合只记录类型和大小，调用它们的toString可能会触发延迟加载。
+     */
+    private static String text(Object value) {
+        if (value == null || value instanceof CharSequence || value instanceof Number || value instanceof Boolean ||
+                value instanceof Character || value instanceof Enum || value instanceof TemporalAccessor ||
+                value instanceof Date || value instanceof UUID) {
+            return String.valueOf(value);
+        }
+        if (value instanceof Collection) {
+            return value.getClass().getSimpleName() + "(" + ((Collection<?>) value).size() + ")";
+        }
+        if (value instanceof Map) {
+            return value.getClass().getSimpleName() + "(" + ((Map<?, ?>) value).size() + ")";
+        }
+        if (value.getClass().isArray()) {
+            return value.getClass().getComponentType().getSimpleName() + "[" + Array.getLength(value) + "]";
+        }
+        return value.getClass().getSimpleName();
+    }
+
+    private static String abbreviate(String text) {
+        text = text.replaceAll("\\s+", " ");
+        return text.length() <= MAX_TEXT ? text : text.substring(0, MAX_TEXT) + "...";
+    }
+
+    static class Scope {
+
+        private final String name;
+
+        private final Scope parent;
+
+        private final long start = System.nanoTime();
+
+        private final Map<String, int[]> counts = new LinkedHashMap<>();
+
+        /**
+         * 内层范围已经报告过的N+1语句
+         */
+        private final Set<String> reported = new HashSet<>();
+
+        private int total;
+
+        private Scope(String name, Scope parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+    }
+
+}
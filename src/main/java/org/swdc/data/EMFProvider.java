@@ -4,6 +4,7 @@ import jakarta.inject.Provider;
 import org.hibernate.dialect.Dialect;
 import org.swdc.data.anno.Configure;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -16,7 +17,7 @@ public abstract class EMFProvider implements Provider<EMFProviderFactory> {
         if (factory != null) {
             return factory;
         }
-        factory = new EMFProviderFactory(registerEntities());
+        factory = new EMFProviderFactory(registerEntities(), registerRepositories());
         factory.initialize();
 
         Configure configure = this.getClass().getAnnotation(Configure.class);
@@ -28,6 +29,10 @@ public abstract class EMFProvider implements Provider<EMFProviderFactory> {
             if (configure.driver() != Object.class && configure.dialect() != Dialect.class) {
                 factory.driver(configure.driver().getName(),configure.dialect().getName());
             }
+
+            if (configure.cache() || configure.queryCache()) {
+                factory.cache(configure.cache(), configure.queryCache());
+            }
         }
 
         return factory;
@@ -35,5 +40,15 @@ public abstract class EMFProvider implements Provider<EMFProviderFactory> {
 
     public abstract List<Class> registerEntities();
 
+    /**
+     * 注册Repository接口，开启swdc.data.warmup后，
+     * 这些接口中的SQLQuery会在数据库启动后被预先编译。
+     *
+     * @return Repository接口
+     */
+    public List<Class> registerRepositories() {
+        return new ArrayList<>();
+    }
+
 
 }
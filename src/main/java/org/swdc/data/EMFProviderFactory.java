@@ -1,5 +1,6 @@
 package org.swdc.data;
 
+import com.zaxxer.hikari.HikariDataSource;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.inject.Inject;
@@ -10,25 +11,84 @@ import jakarta.persistence.EntityTransaction;
 import jakarta.persistence.Persistence;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class EMFProviderFactory {
 
     private EntityManagerFactory entityFactory;
 
-    private static Map<Thread, EntityManager> localEm = new ConcurrentHashMap<>();
+    private EntityManagerContext context = new ThreadLocalEntityManagerContext();
+
+    /**
+     * 仍然可能处于打开状态的EntityManager，使用弱引用，
+     * 线程结束后遗留的EntityManager会被正常回收。
+     */
+    private final Set<EntityManager> liveEntityManagers = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    /**
+     * 由unitOfWork创建的EntityManager，它们只能由unitOfWork关闭。
+     */
+    private final Set<EntityManager> scopedEntityManagers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * pooled模式下工作单元使用的EntityManager池。
+     */
+    private EntityManagerPool pool;
+
+    /**
+     * 隐式绑定的EntityManager中的实体过多时的处理方式：clear、close或者none。
+     */
+    private String recycle = "clear";
+
+    /**
+     * 隐式绑定的EntityManager最多管理的实体数量。
+     */
+    private int maxManaged = 10000;
+
+    /**
+     * unitOfWork是否总是使用新的EntityManager，不使用线程上隐式绑定的。
+     */
+    private boolean recycleAfterWork = false;
+
+    /**
+     * 监控指标，默认保存在内存中。
+     */
+    private volatile DataMetrics metrics = new InMemoryMetrics();
+
+    /**
+     * 执行异步任务的线程池，第一次使用的时候创建。
+     */
+    private volatile ThreadPoolExecutor asyncExecutor;
 
     private Logger logger = LoggerFactory.getLogger(EMFProviderFactory.class);
 
     private List<Class> entities = new ArrayList<>();
 
+    private List<Class> repositories = new ArrayList<>();
+
     private Properties hibernateConfig = null;
 
+    /**
+     * 合并后的完整配置，在create之后可用。
+     */
+    private Properties properties = new Properties();
+
     // 允许用户有限度的在代码中配置一些属性。
 
    // private String url;
@@ -41,6 +101,11 @@ public class EMFProviderFactory {
         this.entities = entities;
     }
 
+    public EMFProviderFactory(List<Class> entities, List<Class> repositories) {
+        this.entities = entities;
+        this.repositories = repositories;
+    }
+
     public void initialize() {
         try {
             InputStream defaultPropSteam = EMFProvider.class.getModule().getResourceAsStream("hibernate.properties");
@@ -72,6 +137,17 @@ public class EMFProviderFactory {
         hibernateConfig.put("hibernate.dialect",dialect);
     }
 
+    /**
+     * 开启二级缓存或者查询缓存。
+     *
+     * @param secondLevel 是否开启二级缓存
+     * @param query 是否开启查询缓存
+     */
+    public void cache(boolean secondLevel, boolean query) {
+        hibernateConfig.put("hibernate.cache.use_second_level_cache", String.valueOf(secondLevel));
+        hibernateConfig.put("hibernate.cache.use_query_cache", String.valueOf(query));
+    }
+
     public void create() {
         try {
             StackWalker stackWalker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
@@ -92,21 +168,151 @@ public class EMFProviderFactory {
             }
 
 
+            this.properties = properties;
+            String contextType = properties.getProperty("swdc.data.context", "thread");
+            if ("scoped".equals(contextType) || "pooled".equals(contextType)) {
+                this.context = new ScopedEntityManagerContext();
+            }
+            this.recycle = properties.getProperty("swdc.data.context.recycle", "clear").trim();
+            this.maxManaged = intProperty("swdc.data.context.max-managed", 10000);
+            this.recycleAfterWork = Boolean.parseBoolean(properties.getProperty("swdc.data.context.recycle-after-work", "false"));
             properties.put(AvailableSettings.LOADED_CLASSES,entities);
+            boolean replicas = properties.getProperty(RoutingConnectionProvider.REPLICA_PREFIX + "0.url") != null;
+            if (replicas) {
+                // 配置了只读副本的时候，由RoutingConnectionProvider同时管理主库和副本的连接池
+                properties.put(AvailableSettings.CONNECTION_PROVIDER, RoutingConnectionProvider.class.getName());
+            }
+            ReadRouting.enable(replicas);
+            boolean diagnostics = Boolean.parseBoolean(properties.getProperty("swdc.data.diagnostics", "false"));
+            Diagnostics.configure(
+                    diagnostics,
+                    intProperty("swdc.data.diagnostics.slow-threshold", 500),
+                    intProperty("swdc.data.diagnostics.repeat-threshold", 10)
+            );
+            if (diagnostics) {
+                // 诊断模式通过StatementInspector统计执行的SQL
+                properties.put(AvailableSettings.STATEMENT_INSPECTOR, (StatementInspector) Diagnostics::inspect);
+            }
             this.entityFactory = Persistence.createEntityManagerFactory("default", properties);
+            EntityMetadata.register(entityFactory.getMetamodel());
+            metrics.bind(this);
+            trackConnectionPool();
             logger.info("database is ready.");
+
+            if ("pooled".equals(contextType)) {
+                // 同时借出的EntityManager不超过连接池的大小
+                int size = Integer.parseInt(properties.getProperty("hibernate.hikari.maximumPoolSize", "10"));
+                long timeout = Long.parseLong(properties.getProperty("swdc.data.pool.timeout", "30000"));
+                this.pool = new EntityManagerPool(this::createEntityManager, size, timeout);
+            }
+
+            if (Boolean.parseBoolean(properties.getProperty("swdc.data.warmup", "false"))) {
+                int threads = Integer.parseInt(properties.getProperty("swdc.data.warmup.threads", "2"));
+                new QueryWarmer(entityFactory, repositories).warmUp(threads);
+            }
         } catch (Exception e) {
             logger.error("无法载入数据库链接。",e);
         }
     }
 
+    /**
+     * 读取整数类型的配置。
+     *
+     * @param key 配置的名称
+     * @param defaultValue 默认值
+     * @return 配置的值
+     */
+    int intProperty(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("invalid value of " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 替换EntityManager的上下文，应该在使用数据库之前调用。
+     *
+     * @param context EntityManager上下文
+     */
+    public void setContext(EntityManagerContext context) {
+        if (context == null) {
+            return;
+        }
+        this.context = context;
+    }
+
+    public EntityManagerContext getContext() {
+        return context;
+    }
+
+    /**
+     * 替换监控指标的实现。
+     *
+     * @param metrics 监控指标，为null的时候不记录
+     */
+    public void setMetrics(DataMetrics metrics) {
+        this.metrics = metrics == null ? DataMetrics.NONE : metrics;
+        if (entityFactory != null) {
+            this.metrics.bind(this);
+        }
+    }
+
+    public DataMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 使用HikariCP的时候，记录获取连接的等待时间。
+     */
+    private void trackConnectionPool() {
+        try {
+            ConnectionProvider provider = entityFactory.unwrap(SessionFactoryImplementor.class)
+                    .getServiceRegistry()
+                    .getService(ConnectionProvider.class);
+            if (provider == null || !provider.isUnwrappableAs(HikariDataSource.class)) {
+                return;
+            }
+            provider.unwrap(HikariDataSource.class).setMetricsTrackerFactory(new PoolMetricsTracker(this::getMetrics));
+            if (provider instanceof RoutingConnectionProvider) {
+                for (HikariDataSource replica : ((RoutingConnectionProvider) provider).getReplicas()) {
+                    replica.setMetricsTrackerFactory(new PoolMetricsTracker(this::getMetrics));
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("can not track the connection pool: " + e.getMessage());
+        }
+    }
+
     @PreDestroy
     public void destroy(){
         if (entityFactory == null) {
             return;
         }
-        for (Map.Entry<Thread,EntityManager> ent: localEm.entrySet()) {
-            EntityManager em = ent.getValue();
+        ThreadPoolExecutor executor = this.asyncExecutor;
+        if (executor != null) {
+            // 等待进行中的异步任务结束，它们还在使用EntityManager
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            asyncExecutor = null;
+        }
+        List<EntityManager> managers = null;
+        synchronized (liveEntityManagers) {
+            managers = new ArrayList<>(liveEntityManagers);
+        }
+        for (EntityManager em : managers) {
             if (em.isOpen()) {
                 EntityTransaction tx = em.getTransaction();
                 if (tx != null && tx.isActive()) {
@@ -115,32 +321,307 @@ public class EMFProviderFactory {
                 em.close();
             }
         }
+        liveEntityManagers.clear();
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
 
         entityFactory.close();
         entityFactory = null;
     }
 
+    /**
+     * 获取当前上下文中的EntityManager。
+     *
+     * 隐式的上下文（默认）中，没有EntityManager的时候会创建一个并绑定到当前线程；
+     * 作用域上下文中，只有在unitOfWork的内部才能获取到EntityManager，否则返回null。
+     *
+     * @return EntityManager
+     */
     public EntityManager getEntityManager() {
         if (entityFactory == null) {
             throw new RuntimeException("please start jpa first");
         }
-        EntityManager entityManager = localEm.get(Thread.currentThread());
+        EntityManager entityManager = context.current();
+        if (entityManager != null && entityManager.isOpen() && !recycle(entityManager)) {
+            return entityManager;
+        }
+        if (!context.isImplicit()) {
+            return null;
+        }
+        entityManager = createEntityManager();
+        context.bind(entityManager);
+        return entityManager;
+    }
+
+    /**
+     * 在一个独立的工作单元中执行任务。
+     *
+     * 如果当前已经存在EntityManager，任务直接在其中执行，
+     * 否则会创建新的EntityManager并在任务期间绑定到上下文，
+     * 任务结束后，EntityManager会被关闭，未提交的事务将会回滚。
+     * pooled模式下EntityManager从池中借出，结束后清空并归还，
+     * 池中的EntityManager全部被借出的时候，本方法会等待其他工作单元结束。
+     *
+     * @param task 任务
+     * @param <T> 任务结果的类型
+     * @return 任务的结果
+     * @throws Exception 任务抛出的异常
+     */
+    public <T> T unitOfWork(Callable<T> task) throws Exception {
+        if (entityFactory == null) {
+            throw new RuntimeException("please start jpa first");
+        }
+        EntityManager current = context.current();
+        if (current != null && current.isOpen() && (!recycleAfterWork || isScoped(current))) {
+            return task.call();
+        }
+        // 开启recycle-after-work的时候，线程上隐式绑定的EntityManager在工作单元期间被挂起
+        return newUnitOfWork(task);
+    }
+
+    /**
+     * 总是在新的EntityManager中执行任务，当前的EntityManager在任务期间被挂起，
+     * 任务结束后恢复。pooled模式下会再从池中借用一个EntityManager，
+     * 当前线程已经持有池中的EntityManager的时候不会等待其他线程归还，
+     * 没有空闲的EntityManager时直接失败，以免所有线程互相等待。
+     *
+     * @param task 任务
+     * @param <T> 任务结果的类型
+     * @return 任务的结果
+     * @throws Exception 任务抛出的异常
+     */
+    <T> T newUnitOfWork(Callable<T> task) throws Exception {
+        if (entityFactory == null) {
+            throw new RuntimeException("please start jpa first");
+        }
+        EntityManagerPool pool = this.pool;
+        EntityManager entityManager = pool == null ? createEntityManager() : pool.borrow();
+        scopedEntityManagers.add(entityManager);
+        Diagnostics.Scope scope = Diagnostics.begin(EMFProviderFactory.class, "unitOfWork");
+        try {
+            return context.scoped(entityManager, task);
+        } finally {
+            Diagnostics.end(scope, null, -1);
+            scopedEntityManagers.remove(entityManager);
+            if (pool == null) {
+                close(entityManager);
+            } else {
+                pool.giveBack(entityManager);
+            }
+        }
+    }
+
+    /**
+     * 在异步任务的线程池中执行任务，每个任务有自己的工作单元和EntityManager，
+     * 调用者的EntityManager不会被其他线程使用。
+     *
+     * 线程数默认与连接池的大小相同（swdc.data.async.threads），等待的任务超过swdc.data.async.queue个的时候，
+     * 新的任务在调用者的线程中执行，这样提交任务的速度不会超过数据库处理的速度。
+     *
+     * @param task 任务
+     * @param <T> 任务结果的类型
+     * @return 任务的结果，任务抛出异常的时候以这个异常结束
+     */
+    public <T> CompletableFuture<T> unitOfWorkAsync(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            asyncExecutor().execute(() -> {
+                try {
+                    future.complete(newUnitOfWork(task));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private ThreadPoolExecutor asyncExecutor() {
+        ThreadPoolExecutor executor = this.asyncExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (entityFactory == null) {
+                throw new RejectedExecutionException("please start jpa first");
+            }
+            if (asyncExecutor == null) {
+                int poolSize = intProperty("hibernate.hikari.maximumPoolSize", 10);
+                int threads = Math.max(intProperty("swdc.data.async.threads", poolSize), 1);
+                int queue = Math.max(intProperty("swdc.data.async.queue", 1000), 1);
+                AtomicInteger counter = new AtomicInteger();
+                asyncExecutor = new ThreadPoolExecutor(
+                        threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(queue),
+                        r -> {
+                            Thread thread = new Thread(r, "swdata-async-" + counter.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                        (r, pool) -> {
+                            if (pool.isShutdown()) {
+                                throw new RejectedExecutionException("database is closed");
+                            }
+                            r.run();
+                        }
+                );
+                asyncExecutor.allowCoreThreadTimeOut(true);
+            }
+            return asyncExecutor;
+        }
+    }
+
+    /**
+     * 作用域上下文中，如果当前没有工作单元，
+     * Repository的方法需要自己开启一个。
+     *
+     * @return 是否需要开启新的工作单元
+     */
+    public boolean requiresUnitOfWork() {
+        if (context.isImplicit()) {
+            return false;
+        }
+        EntityManager current = context.current();
+        return current == null || !current.isOpen();
+    }
+
+    /**
+     * @param entityManager EntityManager
+     * @return 是否属于某个unitOfWork，它会一直存在到工作单元结束
+     */
+    boolean isScoped(EntityManager entityManager) {
+        return scopedEntityManagers.contains(entityManager);
+    }
+
+    /**
+     * 释放EntityManager。
+     *
+     * 隐式绑定的EntityManager会被关闭并从上下文中移除，
+     * 属于unitOfWork的EntityManager会在工作单元结束的时候关闭，这里不做处理。
+     *
+     * @param entityManager 需要释放的EntityManager
+     */
+    public void release(EntityManager entityManager) {
+        if (entityManager == null || scopedEntityManagers.contains(entityManager)) {
+            return;
+        }
+        if (context.isImplicit() && context.current() == entityManager) {
+            context.unbind();
+        }
+        close(entityManager);
+    }
+
+    /**
+     * 释放当前线程隐式绑定的EntityManager，
+     * 适合在线程池中的任务结束时调用。
+     */
+    public void release() {
+        EntityManager entityManager = context.current();
+        if (entityManager != null) {
+            release(entityManager);
+        }
+    }
+
+    /**
+     * @return 当前上下文中的EntityManager管理的实体数量，没有EntityManager的时候是0
+     */
+    public int getManagedEntities() {
+        EntityManager entityManager = context.current();
+        return managedEntities(entityManager);
+    }
+
+    /**
+     * 全部处于打开状态的EntityManager管理的实体数量。
+     *
+     * 其他线程中的EntityManager可能正在被修改，所以这只是一个近似值，适合用于监控。
+     *
+     * @return 管理的实体数量
+     */
+    public long getTotalManagedEntities() {
+        List<EntityManager> managers = null;
+        synchronized (liveEntityManagers) {
+            managers = new ArrayList<>(liveEntityManagers);
+        }
+        long total = 0;
+        for (EntityManager em : managers) {
+            total += managedEntities(em);
+        }
+        return total;
+    }
+
+    private int managedEntities(EntityManager entityManager) {
         if (entityManager == null || !entityManager.isOpen()) {
-            entityManager = entityFactory.createEntityManager();
-            localEm.put(Thread.currentThread(),entityManager);
+            return 0;
         }
+        try {
+            return entityManager.unwrap(SessionImplementor.class)
+                    .getPersistenceContextInternal()
+                    .getNumberOfManagedEntities();
+        } catch (Exception e) {
+            // 其他线程可能刚刚关闭了它
+            return 0;
+        }
+    }
 
-        if (!entityManager.isOpen()) {
-            entityManager.clear();
-            entityManager.close();
-            localEm.remove(Thread.currentThread());
+    /**
+     * 线程上隐式绑定的EntityManager会一直存在，持久化上下文中的实体会越来越多，
+     * 没有事务的时候，如果实体超过了max-managed，按照配置清空或者关闭它。
+     *
+     * @param entityManager 当前上下文中的EntityManager
+     * @return 是否已经被关闭，需要重新创建
+     */
+    private boolean recycle(EntityManager entityManager) {
+        if (!context.isImplicit() || "none".equals(recycle) || isScoped(entityManager)) {
+            return false;
+        }
+        if (managedEntities(entityManager) <= maxManaged || entityManager.getTransaction().isActive()) {
+            return false;
+        }
+        if ("close".equals(recycle)) {
+            release(entityManager);
+            return true;
+        }
+        entityManager.clear();
+        return false;
+    }
 
-            entityManager = entityFactory.createEntityManager();
-            localEm.put(Thread.currentThread(),entityManager);
+    /**
+     * @return 当前处于打开状态的EntityManager的数量
+     */
+    public int getLiveEntityManagers() {
+        synchronized (liveEntityManagers) {
+            int count = 0;
+            for (EntityManager em : liveEntityManagers) {
+                if (em.isOpen()) {
+                    count ++;
+                }
+            }
+            return count;
         }
+    }
 
+    private EntityManager createEntityManager() {
+        EntityManager entityManager = entityFactory.createEntityManager();
+        liveEntityManagers.add(entityManager);
+        metrics.entityManagerCreated();
         return entityManager;
     }
 
+    private void close(EntityManager entityManager) {
+        liveEntityManagers.remove(entityManager);
+        if (!entityManager.isOpen()) {
+            return;
+        }
+        EntityTransaction tx = entityManager.getTransaction();
+        if (tx != null && tx.isActive()) {
+            tx.rollback();
+        }
+        entityManager.close();
+    }
+
 
 }
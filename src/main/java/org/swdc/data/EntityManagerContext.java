@@ -0,0 +1,54 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+
+import java.util.concurrent.Callable;
+
+/**
+ * EntityManager的上下文，决定EntityManager绑定在什么地方。
+ *
+ * EMFProviderFactory通过它查找当前的EntityManager，
+ * 默认使用ThreadLocalEntityManagerContext，每个线程一个EntityManager，
+ * 线程结束后，EntityManager会随着线程一起被回收。
+ *
+ * 如果需要在更新的JDK上使用ScopedValue，实现本接口的scoped方法，
+ * 在其中使用ScopedValue.where(...).call(task)即可，isImplicit返回false。
+ */
+public interface EntityManagerContext {
+
+    /**
+     * 获取当前上下文中的EntityManager
+     * @return EntityManager，不存在的时候返回null
+     */
+    EntityManager current();
+
+    /**
+     * 在task执行期间把EntityManager绑定到上下文中，
+     * task结束后恢复原来的EntityManager。
+     *
+     * @param entityManager 需要绑定的EntityManager
+     * @param task 在此EntityManager中执行的任务
+     * @param <T> 任务的结果类型
+     * @return 任务的结果
+     * @throws Exception 任务抛出的异常
+     */
+    <T> T scoped(EntityManager entityManager, Callable<T> task) throws Exception;
+
+    /**
+     * 是否允许在没有作用域的时候自动创建并绑定EntityManager。
+     * @return 是否允许隐式绑定
+     */
+    boolean isImplicit();
+
+    /**
+     * 把EntityManager隐式的绑定到上下文，直到unbind。
+     * @param entityManager EntityManager
+     */
+    void bind(EntityManager entityManager);
+
+    /**
+     * 移除隐式绑定的EntityManager
+     */
+    void unbind();
+
+}
@@ -0,0 +1,113 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityTransaction;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 有上限的EntityManager池。
+ *
+ * 每个工作单元从这里借出一个EntityManager，结束后清空并归还，
+ * 同时借出的数量不会超过连接池的大小，所以同时进行JDBC操作的线程
+ * 也不会超过连接池的大小，其余的线程在Semaphore上等待，
+ * 对于虚拟线程来说这种等待不会占用载体线程。
+ */
+class EntityManagerPool {
+
+    private final Supplier<EntityManager> creator;
+
+    private final Semaphore permits;
+
+    private final BlockingQueue<EntityManager> idle;
+
+    private final long timeout;
+
+    /**
+     * 当前线程借出的数量，嵌套的工作单元会在持有一个EntityManager的同时再借用一个
+     */
+    private final ThreadLocal<int[]> held = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * @param creator 创建新的EntityManager
+     * @param size 最多同时借出的数量，一般是连接池的大小
+     * @param timeout 等待的最长时间，毫秒
+     */
+    EntityManagerPool(Supplier<EntityManager> creator, int size, long timeout) {
+        this.creator = creator;
+        this.permits = new Semaphore(size, true);
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.timeout = timeout;
+    }
+
+    /**
+     * 借用一个EntityManager。
+     *
+     * 当前线程已经持有这个池的EntityManager的时候不会等待，
+     * 否则所有线程都在嵌套的工作单元中等待其他线程归还的时候就会死锁，
+     * 没有空闲的EntityManager时直接失败。
+     */
+    EntityManager borrow() throws InterruptedException {
+        int[] count = held.get();
+        if (count[0] > 0) {
+            if (!permits.tryAcquire()) {
+                throw new RuntimeException("no entity manager available for a nested unit of work, " +
+                        "all of them are in use, please increase the pool size.");
+            }
+        } else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            throw new RuntimeException("timeout while waiting for an entity manager, " +
+                    "all of them are in use.");
+        }
+        try {
+            EntityManager entityManager = idle.poll();
+            while (entityManager != null && !entityManager.isOpen()) {
+                entityManager = idle.poll();
+            }
+            if (entityManager == null) {
+                entityManager = creator.get();
+            }
+            count[0] ++;
+            return entityManager;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void giveBack(EntityManager entityManager) {
+        try {
+            if (!entityManager.isOpen()) {
+                return;
+            }
+            EntityTransaction tx = entityManager.getTransaction();
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+            entityManager.clear();
+            if (!idle.offer(entityManager)) {
+                entityManager.close();
+            }
+        } finally {
+            int[] count = held.get();
+            if (count[0] > 0) {
+                count[0] --;
+            }
+            permits.release();
+        }
+    }
+
+    void close() {
+        EntityManager entityManager = idle.poll();
+        while (entityManager != null) {
+            if (entityManager.isOpen()) {
+                entityManager.close();
+            }
+            entityManager = idle.poll();
+        }
+    }
+
+}
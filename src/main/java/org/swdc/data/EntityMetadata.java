@@ -0,0 +1,424 @@
+package org.swdc.data;
+
+import jakarta.persistence.CascadeType;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EntityListeners;
+import jakarta.persistence.Id;
+import jakarta.persistence.ManyToMany;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.MappedSuperclass;
+import jakarta.persistence.OneToMany;
+import jakarta.persistence.OneToOne;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PreRemove;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.Metamodel;
+import jakarta.persistence.metamodel.SingularAttribute;
+import org.hibernate.proxy.HibernateProxy;
+import org.swdc.data.anno.StatelessIgnore;
+import org.swdc.data.anno.StatelessPrivate;
+import org.swdc.ours.common.type.ClassTypeAndMethods;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 实体类的元数据。
+ *
+ * Id字段、可以复制的字段以及它们的Getter和Setter、关联的类型、
+ * StatelessIgnore和StatelessPrivate注解以及无参构造方法，
+ * 每个类只通过反射读取一次，之后DefaultRepository和StatelessHelper都从这里获取。
+ *
+ * 数据库启动的时候会根据JPA的Metamodel预先建立全部实体的元数据，
+ * 其他的类（例如没有注册的实体或者普通的对象）在第一次使用的时候建立。
+ */
+class EntityMetadata {
+
+    /**
+     * 字段在Stateless复制时的处理方式。
+     */
+    enum Relation {
+        /**
+         * 普通的值，直接复制
+         */
+        NONE,
+        /**
+         * ManyToOne关联
+         */
+        MANY_TO_ONE,
+        /**
+         * 类型为实体，并且标注了OneToOne
+         */
+        ONE_TO_ONE,
+        /**
+         * 类型为实体的其他字段
+         */
+        ENTITY,
+        /**
+         * OneToMany或者ManyToMany的集合
+         */
+        COLLECTION
+    }
+
+    /**
+     * 可以复制的字段，也就是同时具有Getter和Setter的字段。
+     */
+    static class Property {
+
+        private final Field field;
+
+        private final Relation relation;
+
+        private final StatelessIgnore ignore;
+
+        private final boolean privacy;
+
+        private final boolean basic;
+
+        private final boolean basicElements;
+
+        private final Function<Object, Object> reader;
+
+        private final BiConsumer<Object, Object> writer;
+
+        Property(Field field, Method getter, Method setter) {
+            this.field = field;
+            this.reader = Accessors.getter(getter);
+            this.writer = Accessors.setter(setter);
+            this.ignore = field.getAnnotation(StatelessIgnore.class);
+            this.privacy = field.getAnnotation(StatelessPrivate.class) != null;
+
+            Class type = field.getType();
+            if (field.getAnnotation(ManyToOne.class) != null) {
+                relation = Relation.MANY_TO_ONE;
+            } else if (type.getAnnotation(Entity.class) != null) {
+                relation = field.getAnnotation(OneToOne.class) != null ? Relation.ONE_TO_ONE : Relation.ENTITY;
+            } else if (field.getAnnotation(OneToMany.class) != null || field.getAnnotation(ManyToMany.class) != null) {
+                relation = Relation.COLLECTION;
+            } else {
+                relation = Relation.NONE;
+            }
+
+            this.basic = ClassTypeAndMethods.isBasicType(type) || ClassTypeAndMethods.isBoxedType(type);
+            boolean elements = false;
+            if (Collection.class.isAssignableFrom(type)) {
+                List<Class> param = ClassTypeAndMethods.getFieldParameters(field);
+                elements = !param.isEmpty() && (ClassTypeAndMethods.isBoxedType(param.get(0)) || ClassTypeAndMethods.isBasicType(param.get(0)));
+            }
+            this.basicElements = elements;
+        }
+
+        Field getField() {
+            return field;
+        }
+
+        Class getType() {
+            return field.getType();
+        }
+
+        /**
+         * 通过Getter读取字段的值。
+         */
+        Object read(Object target) {
+            return reader.apply(target);
+        }
+
+        /**
+         * 通过Setter写入字段的值。
+         */
+        void write(Object target, Object value) {
+            writer.accept(target, value);
+        }
+
+        Relation getRelation() {
+            return relation;
+        }
+
+        /**
+         * @return StatelessIgnore注解，没有的时候为null
+         */
+        StatelessIgnore getIgnore() {
+            return ignore;
+        }
+
+        /**
+         * @return 是否标注了StatelessPrivate
+         */
+        boolean isPrivacy() {
+            return privacy;
+        }
+
+        /**
+         * @return 是否为基本类型或者它们的包装类
+         */
+        boolean isBasic() {
+            return basic;
+        }
+
+        /**
+         * @return 是否为基本类型或者它们的包装类的集合
+         */
+        boolean isBasicElements() {
+            return basicElements;
+        }
+
+    }
+
+    private static final Map<Class, EntityMetadata> registry = new ConcurrentHashMap<>();
+
+    /**
+     * 通过Metamodel注册的实体类型
+     */
+    private static final Set<Class> entities = ConcurrentHashMap.newKeySet();
+
+    private final Class type;
+
+    private final Class rootType;
+
+    private final Field idField;
+
+    private final Supplier<Object> constructor;
+
+    private final List<Property> statelessProperties;
+
+    private final List<Property> properties;
+
+    private final boolean entityRemove;
+
+    private EntityMetadata(Class type, Field idField) {
+        this.type = type;
+        Class root = type;
+        while (root.getSuperclass() != null && root.getSuperclass().getAnnotation(Entity.class) != null) {
+            root = root.getSuperclass();
+        }
+        this.rootType = root;
+        this.idField = idField == null ? findIdField(type) : idField;
+        if (this.idField != null) {
+            this.idField.setAccessible(true);
+        }
+
+        Supplier<Object> found = null;
+        try {
+            found = Accessors.constructor(type.getConstructor());
+        } catch (NoSuchMethodException e) {
+            // 没有无参构造方法的类不能被复制，在复制的时候才会报告错误。
+        }
+        this.constructor = found;
+
+        // stateless只复制当前类以及作为它的MappedSuperclass的父类中的字段，
+        // safety则会处理全部的父类。
+        List<Property> stateless = new ArrayList<>();
+        List<Property> all = new ArrayList<>();
+        boolean copied = true;
+        Class current = type;
+        while (current != null && current != Object.class) {
+            for (Field field : current.getDeclaredFields()) {
+                Method getter = ClassTypeAndMethods.extractGetter(field);
+                Method setter = ClassTypeAndMethods.extractSetter(field);
+                if (getter == null || setter == null) {
+                    continue;
+                }
+                Property property = new Property(field, getter, setter);
+                all.add(property);
+                if (copied) {
+                    stateless.add(property);
+                }
+            }
+            current = current.getSuperclass();
+            if (current != null && current.getAnnotation(MappedSuperclass.class) == null) {
+                copied = false;
+            }
+        }
+        this.statelessProperties = Collections.unmodifiableList(stateless);
+        this.properties = Collections.unmodifiableList(all);
+        this.entityRemove = requiresEntityRemove(type);
+    }
+
+    /**
+     * 获取类的元数据，Hibernate的代理类会使用被代理的实体类。
+     *
+     * @param type 类型
+     * @return 元数据
+     */
+    static EntityMetadata of(Class type) {
+        Class target = type;
+        while (HibernateProxy.class.isAssignableFrom(target) && target.getSuperclass() != null) {
+            target = target.getSuperclass();
+        }
+        EntityMetadata metadata = registry.get(target);
+        if (metadata != null) {
+            return metadata;
+        }
+        Class key = target;
+        return registry.computeIfAbsent(key, k -> new EntityMetadata(key, null));
+    }
+
+    /**
+     * 根据JPA的Metamodel建立全部实体的元数据。
+     *
+     * Id字段优先使用Metamodel中的Id属性，无法确定的时候（例如IdClass）再通过注解查找。
+     *
+     * @param metamodel EntityManagerFactory的Metamodel
+     */
+    static void register(Metamodel metamodel) {
+        for (EntityType<?> entityType : metamodel.getEntities()) {
+            Class type = entityType.getJavaType();
+            if (type == null) {
+                continue;
+            }
+            Field idField = null;
+            try {
+                if (entityType.hasSingleIdAttribute()) {
+                    SingularAttribute id = entityType.getId(entityType.getIdType().getJavaType());
+                    Member member = id.getJavaMember();
+                    if (member instanceof Field) {
+                        idField = (Field) member;
+                    }
+                }
+            } catch (RuntimeException e) {
+                idField = null;
+            }
+            registry.put(type, new EntityMetadata(type, idField));
+            entities.add(type);
+        }
+    }
+
+    Class getType() {
+        return type;
+    }
+
+    /**
+     * @return 通过Metamodel注册的全部实体类型
+     */
+    static Set<Class> entityTypes() {
+        return Collections.unmodifiableSet(entities);
+    }
+
+    /**
+     * @return 继承关系中最上层的实体类，同一个继承关系中的实体共用Id
+     */
+    Class getRootType() {
+        return rootType;
+    }
+
+    /**
+     * @return 标注了Id的字段，已经可以访问，没有的时候为null
+     */
+    Field getIdField() {
+        return idField;
+    }
+
+    /**
+     * 读取实体的Id，Hibernate的代理不会被初始化。
+     */
+    Object getId(Object entity) throws IllegalAccessException {
+        if (entity instanceof HibernateProxy) {
+            return ((HibernateProxy) entity).getHibernateLazyInitializer().getInternalIdentifier();
+        }
+        return idField == null ? null : idField.get(entity);
+    }
+
+    /**
+     * 通过无参构造方法创建新的实例。
+     */
+    Object newInstance() throws ReflectiveOperationException {
+        if (constructor == null) {
+            throw new NoSuchMethodException(type.getName() + ".<init>()");
+        }
+        return constructor.get();
+    }
+
+    /**
+     * @return stateless需要复制的字段
+     */
+    List<Property> getStatelessProperties() {
+        return statelessProperties;
+    }
+
+    /**
+     * @return 全部父类中同时具有Getter和Setter的字段
+     */
+    List<Property> getProperties() {
+        return properties;
+    }
+
+    /**
+     * DELETE语句不会触发级联删除、orphanRemoval和删除的回调，
+     * 本类有这些设置的时候需要逐个删除。
+     *
+     * @return 是否需要逐个删除
+     */
+    boolean isEntityRemove() {
+        return entityRemove;
+    }
+
+    private static Field findIdField(Class target) {
+        Class clazz = target;
+        while (clazz != null && clazz != Object.class) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (field.getAnnotation(Id.class) != null) {
+                    return field;
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+        return null;
+    }
+
+    private static boolean requiresEntityRemove(Class type) {
+        if (type.getAnnotation(EntityListeners.class) != null) {
+            return true;
+        }
+        Class current = type;
+        while (current != null && current != Object.class) {
+            for (Method method : current.getDeclaredMethods()) {
+                if (method.getAnnotation(PreRemove.class) != null || method.getAnnotation(PostRemove.class) != null) {
+                    return true;
+                }
+            }
+            for (Field field : current.getDeclaredFields()) {
+                CascadeType[] cascade = null;
+                boolean orphanRemoval = false;
+                OneToMany oneToMany = field.getAnnotation(OneToMany.class);
+                OneToOne oneToOne = field.getAnnotation(OneToOne.class);
+                ManyToMany manyToMany = field.getAnnotation(ManyToMany.class);
+                ManyToOne manyToOne = field.getAnnotation(ManyToOne.class);
+                if (oneToMany != null) {
+                    cascade = oneToMany.cascade();
+                    orphanRemoval = oneToMany.orphanRemoval();
+                } else if (oneToOne != null) {
+                    cascade = oneToOne.cascade();
+                    orphanRemoval = oneToOne.orphanRemoval();
+                } else if (manyToMany != null) {
+                    cascade = manyToMany.cascade();
+                } else if (manyToOne != null) {
+                    cascade = manyToOne.cascade();
+                }
+                if (orphanRemoval) {
+                    return true;
+                }
+                if (cascade != null) {
+                    for (CascadeType cascadeType : cascade) {
+                        if (cascadeType == CascadeType.ALL || cascadeType == CascadeType.REMOVE) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            current = current.getSuperclass();
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,225 @@
+package org.swdc.data;
+
+import jakarta.persistence.AttributeNode;
+import jakarta.persistence.EntityGraph;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Subgraph;
+import org.swdc.data.anno.StatelessIgnore;
+import org.swdc.ours.common.type.ClassTypeAndMethods;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 需要加载和复制的关联。
+ *
+ * 可以通过关联的路径（例如 "pets" 和 "pets.owner"）、最大深度或者JPA的EntityGraph来描述，
+ * Repository会把它转换为EntityGraph，在一次查询中通过fetch join加载这些关联，
+ * StatelessHelper和StatelessGraph则只复制其中的关联，其他的关联保持为空，不会触发延迟加载。
+ *
+ * 普通的字段总是会被加载和复制。
+ *
+ * 注意Hibernate不能在一次查询中同时fetch多个List类型的集合（bag），
+ * 需要这样做的时候请把其中一些集合改为Set。
+ */
+public class FetchPlan {
+
+    /**
+     * 路径以及它们的前缀，按深度为-1的时候使用
+     */
+    private final Set<String> paths;
+
+    /**
+     * 最大深度，不按深度的时候是-1
+     */
+    private final int maxDepth;
+
+    private FetchPlan(Set<String> paths, int maxDepth) {
+        this.paths = paths;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * 通过关联的路径创建，路径中的关联以“.”分隔。
+     *
+     * @param paths 路径，例如 "pets.owner"
+     * @return FetchPlan
+     */
+    public static FetchPlan paths(String... paths) {
+        return paths(Arrays.asList(paths));
+    }
+
+    public static FetchPlan paths(List<String> paths) {
+        Set<String> all = new LinkedHashSet<>();
+        for (String path : paths) {
+            if (path == null || path.isBlank()) {
+                continue;
+            }
+            // 路径的前缀也需要加载，例如pets.owner需要先加载pets
+            String current = path.trim();
+            int index = current.indexOf('.');
+            while (index > 0) {
+                all.add(current.substring(0, index));
+                index = current.indexOf('.', index + 1);
+            }
+            all.add(current);
+        }
+        return new FetchPlan(Collections.unmodifiableSet(all), -1);
+    }
+
+    /**
+     * 按照深度创建，depth为1的时候只包括实体直接的关联。
+     *
+     * @param depth 最大深度
+     * @return FetchPlan
+     */
+    public static FetchPlan depth(int depth) {
+        return new FetchPlan(Collections.emptySet(), Math.max(depth, 0));
+    }
+
+    /**
+     * 通过JPA的EntityGraph创建。
+     *
+     * @param graph EntityGraph
+     * @return FetchPlan
+     */
+    public static FetchPlan of(EntityGraph<?> graph) {
+        Set<String> paths = new LinkedHashSet<>();
+        collect(graph.getAttributeNodes(), "", paths);
+        return paths(new ArrayList<>(paths));
+    }
+
+    private static void collect(List<? extends AttributeNode<?>> nodes, String prefix, Set<String> paths) {
+        for (AttributeNode<?> node : nodes) {
+            String path = prefix + node.getAttributeName();
+            paths.add(path);
+            for (Subgraph<?> subgraph : node.getSubgraphs().values()) {
+                collect(subgraph.getAttributeNodes(), path + ".", paths);
+            }
+        }
+    }
+
+    /**
+     * 是否包括此路径的关联。
+     *
+     * @param path 关联的路径
+     * @return 是否需要加载和复制
+     */
+    public boolean includes(String path) {
+        if (maxDepth >= 0) {
+            int depth = 1;
+            for (int index = 0; index < path.length(); index ++) {
+                if (path.charAt(index) == '.') {
+                    depth ++;
+                }
+            }
+            return depth <= maxDepth;
+        }
+        return paths.contains(path);
+    }
+
+    /**
+     * 转换为实体类型的EntityGraph，按深度的时候根据实体的关联展开。
+     *
+     * @param em EntityManager
+     * @param entityClass 实体类型
+     * @return EntityGraph
+     */
+    public <E> EntityGraph<E> toEntityGraph(EntityManager em, Class<E> entityClass) {
+        EntityGraph<E> graph = em.createEntityGraph(entityClass);
+        Set<String> paths = expand(entityClass);
+        Set<String> parents = new HashSet<>();
+        for (String path : paths) {
+            int index = path.lastIndexOf('.');
+            if (index > 0) {
+                parents.add(path.substring(0, index));
+            }
+        }
+        Map<String, Subgraph<?>> subgraphs = new HashMap<>();
+        for (String path : paths) {
+            int index = path.lastIndexOf('.');
+            String attribute = path.substring(index + 1);
+            Subgraph<?> parent = index < 0 ? null : subgraphs.get(path.substring(0, index));
+            if (parents.contains(path)) {
+                subgraphs.put(path, parent == null ? graph.addSubgraph(attribute) : parent.addSubgraph(attribute));
+            } else if (parent == null) {
+                graph.addAttributeNodes(attribute);
+            } else {
+                parent.addAttributeNodes(attribute);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * 是否包括集合类型的关联。
+     *
+     * @param entityClass 实体类型
+     * @return 是否需要fetch集合
+     */
+    boolean fetchesCollection(Class entityClass) {
+        for (String path : expand(entityClass)) {
+            Class type = entityClass;
+            for (String name : path.split("\\.")) {
+                EntityMetadata.Property property = null;
+                for (EntityMetadata.Property item : EntityMetadata.of(type).getProperties()) {
+                    if (item.getField().getName().equals(name)) {
+                        property = item;
+                        break;
+                    }
+                }
+                if (property == null) {
+                    break;
+                }
+                if (property.getRelation() == EntityMetadata.Relation.COLLECTION) {
+                    return true;
+                }
+                type = property.getType();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 需要加载的全部路径，父路径在子路径的前面
+     */
+    private Set<String> expand(Class entityClass) {
+        if (maxDepth < 0) {
+            return paths;
+        }
+        Set<String> result = new LinkedHashSet<>();
+        expand(entityClass, "", 1, result);
+        return result;
+    }
+
+    private void expand(Class type, String prefix, int depth, Set<String> result) {
+        if (depth > maxDepth) {
+            return;
+        }
+        for (EntityMetadata.Property property : EntityMetadata.of(type).getStatelessProperties()) {
+            StatelessIgnore ignore = property.getIgnore();
+            if (property.getRelation() == EntityMetadata.Relation.NONE || (ignore != null && !ignore.reverse())) {
+                continue;
+            }
+            Class target = property.getType();
+            if (property.getRelation() == EntityMetadata.Relation.COLLECTION) {
+                List<Class> params = ClassTypeAndMethods.getFieldParameters(property.getField());
+                if (params.isEmpty()) {
+                    continue;
+                }
+                target = params.get(0);
+            }
+            String path = prefix + property.getField().getName();
+            result.add(path);
+            expand(target, path + ".", depth + 1, result);
+        }
+    }
+
+}
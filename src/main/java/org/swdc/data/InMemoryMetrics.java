@@ -0,0 +1,255 @@
+package org.swdc.data;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 保存在内存中的监控指标，不依赖任何第三方的库。
+ *
+ * 耗时记录在对数分布的直方图中，每个2的幂之间分为8个区间，
+ * 百分位数的误差不超过12.5%，每个方法占用的内存是固定的。
+ *
+ * <pre>
+ * InMemoryMetrics metrics = (InMemoryMetrics) factory.getMetrics();
+ * metrics.getRepositoryCalls().get("UserRepository.findByName").percentile(0.99);
+ * </pre>
+ */
+public class InMemoryMetrics implements DataMetrics {
+
+    /**
+     * 按照接口名和方法名分两层保存，记录的时候不需要拼接名称
+     */
+    private final Map<String, Map<String, Stats>> repositoryCalls = new ConcurrentHashMap<>();
+
+    private final Map<String, Stats> transactions = new ConcurrentHashMap<>();
+
+    private final Stats connectionWait = new Stats();
+
+    private final LongAdder connectionTimeouts = new LongAdder();
+
+    private final LongAdder entityManagersCreated = new LongAdder();
+
+    private volatile EMFProviderFactory factory;
+
+    @Override
+    public void bind(EMFProviderFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void repositoryCall(String repository, String method, long nanos, long rows, boolean failed) {
+        Map<String, Stats> methods = repositoryCalls.get(repository);
+        if (methods == null) {
+            methods = repositoryCalls.computeIfAbsent(repository, k -> new ConcurrentHashMap<>());
+        }
+        stats(methods, method).record(nanos, rows, failed);
+    }
+
+    @Override
+    public void transaction(String method, long nanos, boolean rolledBack) {
+        stats(transactions, method).record(nanos, 0, rolledBack);
+    }
+
+    @Override
+    public void entityManagerCreated() {
+        entityManagersCreated.increment();
+    }
+
+    @Override
+    public void connectionAcquired(long nanos) {
+        connectionWait.record(nanos, 0, false);
+    }
+
+    @Override
+    public void connectionTimeout() {
+        connectionTimeouts.increment();
+    }
+
+    /**
+     * @return Repository方法的指标，key是“接口名.方法名”，按名称排序
+     */
+    public Map<String, Stats> getRepositoryCalls() {
+        Map<String, Stats> calls = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Stats>> repository : repositoryCalls.entrySet()) {
+            for (Map.Entry<String, Stats> method : repository.getValue().entrySet()) {
+                calls.put(repository.getKey() + "." + method.getKey(), method.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(calls);
+    }
+
+    /**
+     * @return 事务的指标，key是“类名.方法名”，errors是回滚的次数
+     */
+    public Map<String, Stats> getTransactions() {
+        return Collections.unmodifiableMap(new TreeMap<>(transactions));
+    }
+
+    /**
+     * @return 从连接池获取连接的等待时间
+     */
+    public Stats getConnectionWait() {
+        return connectionWait;
+    }
+
+    public long getConnectionTimeouts() {
+        return connectionTimeouts.sum();
+    }
+
+    public long getEntityManagersCreated() {
+        return entityManagersCreated.sum();
+    }
+
+    /**
+     * @return 当前处于打开状态的EntityManager的数量
+     */
+    public int getLiveEntityManagers() {
+        EMFProviderFactory factory = this.factory;
+        return factory == null ? 0 : factory.getLiveEntityManagers();
+    }
+
+    /**
+     * 清空已经记录的指标。
+     */
+    public void reset() {
+        repositoryCalls.clear();
+        transactions.clear();
+        connectionWait.reset();
+        connectionTimeouts.reset();
+        entityManagersCreated.reset();
+    }
+
+    private static Stats stats(Map<String, Stats> map, String name) {
+        Stats stats = map.get(name);
+        if (stats == null) {
+            stats = map.computeIfAbsent(name, k -> new Stats());
+        }
+        return stats;
+    }
+
+    /**
+     * 一项指标：次数、失败的次数、行数以及耗时的直方图。
+     */
+    public static class Stats {
+
+        private static final int SUB_BUCKETS = 8;
+
+        private static final int SUB_BITS = 3;
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder rows = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        void record(long nanos, long rows, boolean failed) {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            if (rows > 0) {
+                this.rows.add(rows);
+            }
+            nanos = Math.max(nanos, 0);
+            totalNanos.add(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+        }
+
+        void reset() {
+            count.reset();
+            errors.reset();
+            rows.reset();
+            totalNanos.reset();
+            for (int i = 0; i < buckets.length(); i ++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMeanNanos() {
+            long count = getCount();
+            return count == 0 ? 0 : getTotalNanos() / count;
+        }
+
+        /**
+         * 耗时的百分位数，返回所在区间的上限。
+         *
+         * @param percentile 0到1之间，例如0.99
+         * @return 耗时，纳秒，没有记录的时候是0
+         */
+        public long percentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[buckets.length()];
+            for (int i = 0; i < snapshot.length; i ++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(Math.min(Math.max(percentile, 0), 1) * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i ++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(target, 1)) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(snapshot.length - 1);
+        }
+
+        /**
+         * 小于8的值各自一个区间，其余的值按照最高位所在的位置和之后的3位分区间。
+         */
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long mantissa = bucket % SUB_BUCKETS;
+            long lower = (SUB_BUCKETS + mantissa) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", errors=" + getErrors() + ", rows=" + getRows() +
+                    ", mean=" + getMeanNanos() / 1000 + "us, p50=" + percentile(0.5) / 1000 +
+                    "us, p99=" + percentile(0.99) / 1000 + "us";
+        }
+
+    }
+
+}
@@ -0,0 +1,531 @@
+package org.swdc.data;
+
+import jakarta.persistence.Query;
+import org.swdc.data.anno.Modify;
+import org.swdc.data.anno.Param;
+import org.swdc.data.anno.SQLQuery;
+import org.swdc.data.anno.SQLQueryFactory;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Repository方法的调用计划。
+ *
+ * 每一个Method在第一次被调用的时候解析一次它的注解、参数和返回值，
+ * 之后的调用直接使用这里的结果，不再需要反射查找和字符串比较。
+ * 本类创建后不再修改，可以在多个线程之间共享。
+ */
+class InvocationPlan {
+
+    private static final Pattern KEYSET = Pattern.compile(":" + Pageable.KEYSET_PARAMETER + "\\b");
+
+    private static final Pattern ORDER_BY = Pattern.compile("\\sorder\\s+by\\s", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern LIMIT = Pattern.compile("\\s(limit|offset|fetch\\s+(first|next))\\s", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern JOIN_FETCH = Pattern.compile("\\sjoin\\s+fetch\\s", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern ROOT_ALIAS = Pattern.compile("^from\\s+[\\w.$]+\\s+(?:as\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * 可以跟在实体名后面，但不是别名的关键字
+     */
+    private static final Set<String> CLAUSES = new HashSet<>(Arrays.asList(
+            "where", "join", "left", "right", "inner", "outer", "cross", "full", "group", "having", "order"
+    ));
+
+    enum Kind {
+        /**
+         * 由DefaultRepository自身实现的方法，即JPARepository和Object的方法。
+         */
+        DELEGATE,
+        /**
+         * 通过SQLQuery注解声明的查询。
+         */
+        QUERY,
+        /**
+         * 通过SQLQueryFactory创建的查询。
+         */
+        QUERY_FACTORY,
+        /**
+         * 无法处理的方法，调用的结果总是null。
+         */
+        NONE
+    }
+
+    /**
+     * 查询结果的返回形式，由方法的返回值类型决定。
+     */
+    enum ResultShape {
+        PAGE,
+        SLICE,
+        STREAM,
+        SET,
+        LIST,
+        COLLECTION,
+        ENTITY,
+        NUMBER,
+        OTHER
+    }
+
+    private final Kind kind;
+
+    private final Method method;
+
+    private final Method target;
+
+    /**
+     * 声明方法的Repository接口的名称，记录监控指标的时候使用，不需要每次调用都重新获取。
+     */
+    private final String repositoryName;
+
+    private final boolean modify;
+
+    private final ResultShape shape;
+
+    private final Class returnType;
+
+    /**
+     * 返回值是否为CompletableFuture，这时returnType和shape描述的是它的结果。
+     */
+    private final boolean async;
+
+    private final Class queryType;
+
+    private final SQLQuery sqlQuery;
+
+    private final Class<? extends SQLFactory> factoryType;
+
+    private final String[] paramNames;
+
+    private final boolean[] searchBy;
+
+    /**
+     * Consumer参数的位置，存在的时候查询结果逐行交给它处理，不存在的时候是-1。
+     */
+    private final int consumerIndex;
+
+    /**
+     * Pageable参数的位置，不存在的时候是-1。
+     */
+    private final int pageableIndex;
+
+    /**
+     * 查询的结果（或者结果的元素）是否为实体。
+     */
+    private final boolean entityResult;
+
+    /**
+     * FetchPlan参数的位置，不存在的时候是-1。
+     */
+    private final int fetchPlanIndex;
+
+    /**
+     * 查询是否声明了键集分页的参数。
+     */
+    private final boolean keysetParameter;
+
+    /**
+     * 返回Page的时候使用的count查询。
+     */
+    private final String countQuery;
+
+    /**
+     * count查询是否也引用了键集分页的参数。
+     */
+    private final boolean countKeysetParameter;
+
+    private InvocationPlan(Kind kind, Method target, Method method, Class entityClass) {
+        this.kind = kind;
+        this.method = method;
+        this.target = target;
+        this.repositoryName = method.getDeclaringClass().getSimpleName();
+        this.modify = method.getAnnotation(Modify.class) != null;
+        Type genericReturnType = method.getGenericReturnType();
+        this.async = CompletableFuture.class.isAssignableFrom(method.getReturnType());
+        if (async) {
+            genericReturnType = futureResultType(genericReturnType);
+            this.returnType = rawType(genericReturnType);
+        } else {
+            this.returnType = method.getReturnType();
+        }
+        this.shape = resolveShape(returnType, entityClass);
+        this.sqlQuery = method.getAnnotation(SQLQuery.class);
+
+        SQLQueryFactory factory = method.getAnnotation(SQLQueryFactory.class);
+        this.factoryType = factory == null ? null : factory.value();
+
+        Parameter[] parameters = method.getParameters();
+        this.paramNames = new String[parameters.length];
+        this.searchBy = new boolean[parameters.length];
+        int consumer = -1;
+        int pageable = -1;
+        int fetchPlan = -1;
+        for (int index = 0; index < parameters.length; index ++) {
+            if (Consumer.class.isAssignableFrom(parameters[index].getType())) {
+                consumer = index;
+                continue;
+            }
+            if (Pageable.class.isAssignableFrom(parameters[index].getType())) {
+                pageable = index;
+                continue;
+            }
+            if (FetchPlan.class.isAssignableFrom(parameters[index].getType())) {
+                fetchPlan = index;
+                continue;
+            }
+            Param param = parameters[index].getAnnotation(Param.class);
+            if (param != null) {
+                paramNames[index] = param.value();
+                searchBy[index] = param.searchBy();
+            }
+        }
+        this.consumerIndex = consumer;
+        this.pageableIndex = pageable;
+        this.fetchPlanIndex = fetchPlan;
+
+        if (sqlQuery != null) {
+            this.keysetParameter = pageable != -1 && KEYSET.matcher(sqlQuery.value()).find();
+            this.countQuery = sqlQuery.countQuery().isBlank() ? deriveCountQuery(sqlQuery.value()) : sqlQuery.countQuery();
+            this.countKeysetParameter = countQuery != null && KEYSET.matcher(countQuery).find();
+        } else {
+            this.keysetParameter = false;
+            this.countQuery = null;
+            this.countKeysetParameter = false;
+        }
+
+        this.entityResult = !modify && isEntityResult(genericReturnType, entityClass);
+
+        if (modify || consumer != -1) {
+            // 更新语句不能指定结果类型，逐行处理的查询返回的是处理的行数
+            queryType = null;
+        } else if (returnType == Integer.class || returnType == int.class) {
+            queryType = Integer.class;
+        } else if (returnType == Long.class || returnType == long.class) {
+            queryType = Long.class;
+        } else if (returnType == entityClass) {
+            queryType = entityClass;
+        } else {
+            queryType = null;
+        }
+    }
+
+    /**
+     * 返回值是实体，或者是以实体为元素的集合、Stream、Page或者Slice。
+     */
+    private static boolean isEntityResult(Type type, Class entityClass) {
+        if (type == entityClass) {
+            return true;
+        }
+        if (type instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            return arguments.length == 1 && arguments[0] == entityClass;
+        }
+        return false;
+    }
+
+    /**
+     * CompletableFuture的结果类型，没有泛型参数的时候是Object。
+     */
+    private static Type futureResultType(Type type) {
+        if (type instanceof ParameterizedType) {
+            return ((ParameterizedType) type).getActualTypeArguments()[0];
+        }
+        return Object.class;
+    }
+
+    private static Class rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return rawType(((ParameterizedType) type).getRawType());
+        }
+        return Object.class;
+    }
+
+    /**
+     * 为Repository接口的方法创建调用计划。
+     *
+     * @param method 接口中的方法
+     * @param entityClass Repository对应的实体类型
+     * @return 调用计划
+     */
+    static InvocationPlan create(Method method, Class entityClass) {
+        Method target = findTarget(JPARepository.class, method);
+        if (target == null) {
+            target = findTarget(Object.class, method);
+        }
+        if (target != null) {
+            return new InvocationPlan(Kind.DELEGATE, target, method, entityClass);
+        }
+        if (method.getAnnotation(SQLQuery.class) != null) {
+            return new InvocationPlan(Kind.QUERY, null, method, entityClass);
+        }
+        if (method.getAnnotation(SQLQueryFactory.class) != null) {
+            return new InvocationPlan(Kind.QUERY_FACTORY, null, method, entityClass);
+        }
+        return new InvocationPlan(Kind.NONE, null, method, entityClass);
+    }
+
+    private static Method findTarget(Class type, Method method) {
+        try {
+            // 只在创建计划的时候查找一次，异常不会出现在正常的调用路径上。
+            return type.getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ResultShape resolveShape(Class returnClazz, Class entityClass) {
+        if (Page.class.isAssignableFrom(returnClazz)) {
+            return ResultShape.PAGE;
+        } else if (Slice.class.isAssignableFrom(returnClazz)) {
+            return ResultShape.SLICE;
+        } else if (Stream.class.isAssignableFrom(returnClazz)) {
+            return ResultShape.STREAM;
+        } else if (Set.class.isAssignableFrom(returnClazz)) {
+            return ResultShape.SET;
+        } else if (List.class.isAssignableFrom(returnClazz)) {
+            return ResultShape.LIST;
+        } else if (Collection.class.isAssignableFrom(returnClazz)) {
+            return ResultShape.COLLECTION;
+        } else if (returnClazz == entityClass) {
+            return ResultShape.ENTITY;
+        } else if (returnClazz == Integer.class|| returnClazz == int.class || returnClazz == Long.class || returnClazz == long.class) {
+            return ResultShape.NUMBER;
+        }
+        return ResultShape.OTHER;
+    }
+
+    /**
+     * 通过查询语句推导count查询：去掉排序、限制行数的子句和fetch，把查询的内容换成count。
+     *
+     * join fetch集合的时候一个实体会占用多行，而查询返回的是去重后的实体，
+     * 所以这时按别名统计不重复的实体。
+     *
+     * @param hql 查询语句
+     * @return count查询，无法推导的时候返回null
+     */
+    static String deriveCountQuery(String hql) {
+        String query = hql.trim();
+        // 只去掉最外层，也就是最后一个order by
+        Matcher orderBy = ORDER_BY.matcher(query);
+        int orderStart = -1;
+        while (orderBy.find()) {
+            orderStart = orderBy.start();
+        }
+        if (orderStart >= 0 && query.indexOf(')', orderStart) < 0) {
+            query = query.substring(0, orderStart);
+        }
+        // 最外层的limit、offset和fetch first在语句的最后
+        Matcher limit = LIMIT.matcher(query);
+        while (limit.find()) {
+            if (query.indexOf(')', limit.start()) < 0) {
+                query = query.substring(0, limit.start());
+                break;
+            }
+        }
+        Matcher joinFetch = JOIN_FETCH.matcher(query);
+        boolean fetched = joinFetch.find();
+        query = joinFetch.replaceAll(" join ").trim();
+
+        String lower = query.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("from ")) {
+            if (!fetched) {
+                return "select count(*) " + query;
+            }
+            Matcher alias = ROOT_ALIAS.matcher(query);
+            if (!alias.find() || CLAUSES.contains(alias.group(1).toLowerCase(Locale.ROOT))) {
+                return null;
+            }
+            return "select count(distinct " + alias.group(1) + ") " + query;
+        }
+        if (!lower.startsWith("select ")) {
+            return null;
+        }
+        int from = lower.indexOf(" from ");
+        if (from < 0) {
+            return null;
+        }
+        String selection = query.substring("select ".length(), from).trim();
+        if (selection.contains(",")) {
+            return "select count(*)" + query.substring(from);
+        }
+        if (fetched && !selection.toLowerCase(Locale.ROOT).startsWith("distinct ")) {
+            selection = "distinct " + selection;
+        }
+        return "select count(" + selection + ")" + query.substring(from);
+    }
+
+    /**
+     * 所有的参数都有Param注解的时候，才能绑定到SQLQuery上。
+     * @return 是否可以绑定参数
+     */
+    boolean isBindable() {
+        for (int index = 0; index < paramNames.length; index ++) {
+            if (paramNames[index] == null && index != consumerIndex && index != pageableIndex && index != fetchPlanIndex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 将调用参数绑定到查询上。
+     *
+     * @param query 查询
+     * @param args 调用参数
+     */
+    void bind(Query query, Object[] args) {
+        for (int index = 0; index < paramNames.length; index ++) {
+            if (index == consumerIndex || index == pageableIndex || index == fetchPlanIndex) {
+                continue;
+            }
+            if (searchBy[index]) {
+                query.setParameter(paramNames[index],"%" + args[index] + "%");
+            } else {
+                query.setParameter(paramNames[index],args[index]);
+            }
+        }
+    }
+
+    /**
+     * 收集带有Param注解的参数，用于SQLFactory。
+     *
+     * @param args 调用参数
+     * @return 参数名和参数值
+     */
+    SQLParams params(Object[] args) {
+        Map<String,Object> params = new HashMap<>();
+        for (int index = 0; index < paramNames.length; index ++) {
+            if (paramNames[index] != null) {
+                params.put(paramNames[index],args[index]);
+            }
+        }
+        return new SQLParams(params);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    Method getTarget() {
+        return target;
+    }
+
+    String getRepositoryName() {
+        return repositoryName;
+    }
+
+    boolean isModify() {
+        return modify;
+    }
+
+    ResultShape getShape() {
+        return shape;
+    }
+
+    Class getReturnType() {
+        return returnType;
+    }
+
+    boolean isAsync() {
+        return async;
+    }
+
+    Class getQueryType() {
+        return queryType;
+    }
+
+    SQLQuery getSqlQuery() {
+        return sqlQuery;
+    }
+
+    Class<? extends SQLFactory> getFactoryType() {
+        return factoryType;
+    }
+
+    /**
+     * @return 需要绑定到查询上的参数数量
+     */
+    int getParameterCount() {
+        int count = paramNames.length;
+        if (consumerIndex != -1) {
+            count --;
+        }
+        if (pageableIndex != -1) {
+            count --;
+        }
+        if (fetchPlanIndex != -1) {
+            count --;
+        }
+        return keysetParameter ? count + 1 : count;
+    }
+
+    boolean isPageable() {
+        return pageableIndex != -1;
+    }
+
+    /**
+     * 从调用参数中取出分页参数
+     */
+    Pageable getPageable(Object[] args) {
+        return pageableIndex == -1 ? null : (Pageable) args[pageableIndex];
+    }
+
+    /**
+     * 从调用参数中取出FetchPlan
+     */
+    FetchPlan getFetchPlan(Object[] args) {
+        return fetchPlanIndex == -1 ? null : (FetchPlan) args[fetchPlanIndex];
+    }
+
+    boolean isEntityResult() {
+        return entityResult;
+    }
+
+    boolean hasKeysetParameter() {
+        return keysetParameter;
+    }
+
+    String getCountQuery() {
+        return countQuery;
+    }
+
+    boolean hasCountKeysetParameter() {
+        return countKeysetParameter;
+    }
+
+    boolean isCallback() {
+        return consumerIndex != -1;
+    }
+
+    /**
+     * 从调用参数中取出处理查询结果的Consumer
+     */
+    Consumer getConsumer(Object[] args) {
+        return (Consumer) args[consumerIndex];
+    }
+
+}
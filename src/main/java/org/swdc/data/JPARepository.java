@@ -2,17 +2,88 @@ package org.swdc.data;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface JPARepository<E, ID> {
 
     E getOne(ID id);
 
+    /**
+     * 读取实体，FetchPlan中的关联会在同一次查询中被加载。
+     * 之后可以通过StatelessHelper.stateless(entity, plan)复制它们。
+     *
+     * @param id 实体的Id
+     * @param plan 需要加载的关联
+     * @return 实体
+     */
+    E getOne(ID id, FetchPlan plan);
+
     List<E> getAll();
 
+    /**
+     * 读取全部实体，FetchPlan中的关联会在同一次查询中被加载。
+     *
+     * @param plan 需要加载的关联
+     * @return 实体
+     */
+    List<E> getAll(FetchPlan plan);
+
+    /**
+     * 按照Id（或者键集分页指定的属性）的顺序分页读取实体。
+     *
+     * @param pageable 分页参数
+     * @return 一页实体
+     */
+    Page<E> getAll(Pageable pageable);
+
+    /**
+     * 以流的方式读取全部的实体，读取过的实体会被移出持久化上下文，
+     * 流使用完毕后必须关闭，例如使用try-with-resources。
+     *
+     * @return 实体的流
+     */
+    Stream<E> streamAll();
+
+    /**
+     * 逐个处理全部的实体，处理过的实体会被移出持久化上下文。
+     *
+     * @param consumer 处理实体的回调
+     */
+    void forEach(Consumer<? super E> consumer);
+
     E save(E entry);
 
+    /**
+     * 批量保存实体。
+     *
+     * 已经存在的实体通过IN查询一次性判断，插入和更新通过JDBC批处理执行，
+     * 每保存swdc.data.batch.flush-interval个实体刷新一次持久化上下文。
+     * 返回的实体处于游离状态。
+     *
+     * @param entities 实体
+     * @return 保存后的实体，顺序与参数一致，失败的时候返回null
+     */
+    List<E> saveAll(Collection<E> entities);
+
     void remove(E entry);
 
+    /**
+     * 批量删除实体，与removeAllById相同。
+     *
+     * @param entities 实体
+     */
     void removeAll(Collection<E> entities);
 
+    /**
+     * 通过Id批量删除实体。
+     *
+     * 每swdc.data.batch.delete-size个Id执行一条DELETE语句，持久化上下文中的对应实体会被移除。
+     * 实体有级联删除、orphanRemoval或者删除回调的时候，改为按批加载后逐个删除。
+     *
+     * @param ids 实体的Id
+     * @return 删除的行数
+     */
+    int removeAllById(Collection<ID> ids);
+
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package org.swdc.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把监控指标交给Micrometer，需要应用自己引入micrometer-core。
+ *
+ * <pre>
+ * factory.setMetrics(new MicrometerMetrics(meterRegistry));
+ * </pre>
+ *
+ * 指标的名称：
+ * swdc.data.repository（标签repository、method、outcome）和swdc.data.repository.rows，
+ * swdc.data.transaction（标签method、outcome），swdc.data.entitymanager.created，
+ * swdc.data.entitymanager.live，swdc.data.connection.acquire和swdc.data.connection.timeout。
+ */
+public class MicrometerMetrics implements DataMetrics {
+
+    private final MeterRegistry registry;
+
+    private final Counter created;
+
+    private final Timer acquire;
+
+    private final Counter timeout;
+
+    public MicrometerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.created = Counter.builder("swdc.data.entitymanager.created")
+                .description("entity managers created")
+                .register(registry);
+        this.acquire = Timer.builder("swdc.data.connection.acquire")
+                .description("time waiting for a pooled connection")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.timeout = Counter.builder("swdc.data.connection.timeout")
+                .description("timeouts while waiting for a pooled connection")
+                .register(registry);
+    }
+
+    @Override
+    public void bind(EMFProviderFactory factory) {
+        Gauge.builder("swdc.data.entitymanager.live", factory, EMFProviderFactory::getLiveEntityManagers)
+                .description("open entity managers")
+                .register(registry);
+    }
+
+    @Override
+    public void repositoryCall(String repository, String method, long nanos, long rows, boolean failed) {
+        // Micrometer会缓存已经注册的Meter，重复的builder只是一次查找
+        Timer.builder("swdc.data.repository")
+                .tag("repository", repository)
+                .tag("method", method)
+                .tag("outcome", failed ? "error" : "success")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("swdc.data.repository.rows")
+                .tag("repository", repository)
+                .tag("method", method)
+                .register(registry)
+                .record(rows);
+    }
+
+    @Override
+    public void transaction(String method, long nanos, boolean rolledBack) {
+        Timer.builder("swdc.data.transaction")
+                .tag("method", method)
+                .tag("outcome", rolledBack ? "rollback" : "commit")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void entityManagerCreated() {
+        created.increment();
+    }
+
+    @Override
+    public void connectionAcquired(long nanos) {
+        acquire.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void connectionTimeout() {
+        timeout.increment();
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.swdc.data;
+
+import java.util.List;
+
+/**
+ * 带有总数的分页数据，总数通过count查询获得。
+ *
+ * 键集分页的每一页只能统计到键之后剩余的行数，所以不执行count查询，
+ * 总数未知，getTotalElements和getTotalPages返回UNKNOWN，是否还有下一页通过多读取一行判断。
+ *
+ * @param <E> 数据的类型
+ */
+public class Page<E> extends Slice<E> {
+
+    /**
+     * 总数未知，用于键集分页
+     */
+    public static final long UNKNOWN = -1;
+
+    private final long totalElements;
+
+    public Page(List<E> content, Pageable pageable, long totalElements, Object lastKey) {
+        super(content, pageable, hasNext(content, pageable, totalElements), lastKey);
+        this.totalElements = totalElements;
+    }
+
+    /**
+     * 总数未知的一页，用于键集分页。
+     */
+    public Page(List<E> content, Pageable pageable, boolean hasNext, Object lastKey) {
+        super(content, pageable, hasNext, lastKey);
+        this.totalElements = UNKNOWN;
+    }
+
+    private static boolean hasNext(List content, Pageable pageable, long totalElements) {
+        if (pageable == null || content == null) {
+            return false;
+        }
+        if (pageable.isKeyset()) {
+            return content.size() == pageable.getSize() && totalElements > content.size();
+        }
+        return pageable.getOffset() + content.size() < totalElements;
+    }
+
+    /**
+     * @return 总行数，键集分页的时候是UNKNOWN
+     */
+    public long getTotalElements() {
+        return totalElements;
+    }
+
+    /**
+     * @return 总页数，键集分页的时候是UNKNOWN
+     */
+    public int getTotalPages() {
+        if (totalElements == UNKNOWN) {
+            return (int) UNKNOWN;
+        }
+        Pageable pageable = getPageable();
+        if (pageable == null) {
+            return 1;
+        }
+        return (int) ((totalElements + pageable.getSize() - 1) / pageable.getSize());
+    }
+
+}
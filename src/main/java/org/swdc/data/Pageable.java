@@ -0,0 +1,130 @@
+package org.swdc.data;
+
+/**
+ * 分页的参数。
+ *
+ * 作为Repository方法的参数传入，支持两种分页方式：
+ *
+ * 偏移分页：Pageable.of(page, size)，使用OFFSET跳过前面的行，
+ * 适合页数不多的列表。
+ *
+ * 键集分页：Pageable.keyset(size)以及之后的Slice.nextPageable()，
+ * 通过上一页最后一行的键定位下一页，页数再多也不会退化成大范围的OFFSET扫描。
+ * 在SQLQuery中使用时，查询需要通过 :keyset 参数声明定位条件，例如
+ * <pre>
+ * from User u where (:keyset is null or u.id > :keyset) order by u.id
+ * </pre>
+ * 第一页的keyset参数是null。键集分页的Page不执行count查询，总数是未知的（Page.UNKNOWN）。
+ */
+public class Pageable {
+
+    /**
+     * 键集分页在SQLQuery中使用的参数名。
+     */
+    public static final String KEYSET_PARAMETER = "keyset";
+
+    private final int page;
+
+    private final int size;
+
+    private final boolean keyset;
+
+    private final String keyProperty;
+
+    private final Object key;
+
+    private Pageable(int page, int size, boolean keyset, String keyProperty, Object key) {
+        if (page < 0) {
+            throw new IllegalArgumentException("page index must not be less than zero");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("page size must not be less than one");
+        }
+        this.page = page;
+        this.size = size;
+        this.keyset = keyset;
+        this.keyProperty = keyProperty;
+        this.key = key;
+    }
+
+    /**
+     * 偏移分页
+     *
+     * @param page 页码，从0开始
+     * @param size 每页的行数
+     * @return 分页参数
+     */
+    public static Pageable of(int page, int size) {
+        return new Pageable(page, size, false, null, null);
+    }
+
+    /**
+     * 以Id为键的键集分页的第一页。
+     *
+     * @param size 每页的行数
+     * @return 分页参数
+     */
+    public static Pageable keyset(int size) {
+        return new Pageable(0, size, true, null, null);
+    }
+
+    /**
+     * 键集分页
+     *
+     * @param keyProperty 作为键的属性，需要与查询的排序一致，null表示使用Id
+     * @param after 上一页最后一行的键，第一页为null
+     * @param size 每页的行数
+     * @return 分页参数
+     */
+    public static Pageable keyset(String keyProperty, Object after, int size) {
+        return new Pageable(0, size, true, keyProperty, after);
+    }
+
+    /**
+     * 偏移分页的下一页
+     * @return 下一页的分页参数
+     */
+    public Pageable next() {
+        if (keyset) {
+            throw new IllegalStateException("keyset page needs the key of the last row, use Slice.nextPageable instead.");
+        }
+        return new Pageable(page + 1, size, false, null, null);
+    }
+
+    /**
+     * 键集分页的下一页
+     * @param lastKey 本页最后一行的键
+     * @return 下一页的分页参数
+     */
+    public Pageable next(Object lastKey) {
+        if (!keyset) {
+            return next();
+        }
+        return new Pageable(page + 1, size, true, keyProperty, lastKey);
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getOffset() {
+        return keyset ? 0 : (long) page * size;
+    }
+
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    public String getKeyProperty() {
+        return keyProperty;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+}
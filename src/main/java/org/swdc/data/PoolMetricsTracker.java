@@ -0,0 +1,37 @@
+package org.swdc.data;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.function.Supplier;
+
+/**
+ * 把HikariCP获取连接的等待时间和超时转交给DataMetrics。
+ *
+ * 通过Supplier获取DataMetrics，连接池启动之后替换的DataMetrics也能收到指标。
+ */
+class PoolMetricsTracker implements MetricsTrackerFactory {
+
+    private final Supplier<DataMetrics> metrics;
+
+    PoolMetricsTracker(Supplier<DataMetrics> metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                metrics.get().connectionAcquired(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                metrics.get().connectionTimeout();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.swdc.data.anno.SQLQuery;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在数据库启动后预编译Repository中的SQLQuery。
+ *
+ * 每一个查询都会在后台线程中解析一次并注册为NamedQuery，
+ * 这样错误的HQL在启动的时候就会被发现，Hibernate的查询计划缓存
+ * 也会提前填好，第一次调用的请求不再承担HQL的解析和翻译。
+ */
+class QueryWarmer {
+
+    private static Logger logger = LoggerFactory.getLogger(QueryWarmer.class);
+
+    private final EntityManagerFactory factory;
+
+    private final List<Class> repositories;
+
+    QueryWarmer(EntityManagerFactory factory, List<Class> repositories) {
+        this.factory = factory;
+        this.repositories = repositories;
+    }
+
+    /**
+     * 在后台线程池中预编译全部查询。
+     *
+     * @param threads 线程数
+     * @return 全部查询处理完成时结束的Future
+     */
+    CompletableFuture<Void> warmUp(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread thread = new Thread(r, "swdata-warmup-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (Class repository : repositories) {
+            Class entityClass = entityClass(repository);
+            for (Method method : repository.getMethods()) {
+                SQLQuery sqlQuery = method.getAnnotation(SQLQuery.class);
+                if (sqlQuery == null) {
+                    continue;
+                }
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    if (!compile(repository, method, entityClass)) {
+                        failed.incrementAndGet();
+                    }
+                }, executor));
+            }
+        }
+
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+            executor.shutdown();
+            long cost = (System.nanoTime() - start) / 1000000;
+            logger.info("warm up " + tasks.size() + " queries in " + cost + "ms, " + failed.get() + " failed.");
+        });
+    }
+
+    private boolean compile(Class repository, Method method, Class entityClass) {
+        String name = repository.getSimpleName() + "." + method.getName();
+        InvocationPlan plan = InvocationPlan.create(method, entityClass);
+        String hql = plan.getSqlQuery().value();
+        EntityManager em = factory.createEntityManager();
+        try {
+            long start = System.nanoTime();
+            Query query = null;
+            if (plan.getQueryType() != null) {
+                query = em.createQuery(hql, plan.getQueryType());
+            } else {
+                query = em.createQuery(hql);
+            }
+            factory.addNamedQuery(name, query);
+            long cost = (System.nanoTime() - start) / 1000;
+            logger.info("query " + name + " compiled in " + cost + "us");
+            return true;
+        } catch (Exception e) {
+            logger.error("invalid query " + name + ": " + hql, e);
+            return false;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Class entityClass(Class repository) {
+        for (Type type : repository.getGenericInterfaces()) {
+            if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == JPARepository.class) {
+                Type entity = ((ParameterizedType) type).getActualTypeArguments()[0];
+                if (entity instanceof Class) {
+                    return (Class) entity;
+                }
+            }
+        }
+        return null;
+    }
+
+}
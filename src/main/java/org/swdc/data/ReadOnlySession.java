@@ -0,0 +1,91 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 只读的会话。
+ *
+ * 期间加载的实体都是只读的，Hibernate不再为它们保存快照，也不做脏检查，
+ * 刷新模式为MANUAL，提交事务的时候不会flush。事务由本次调用开启的时候，
+ * JDBC连接也会被标记为只读，数据库和驱动可以据此做优化（例如路由到只读副本）。
+ *
+ * 注意只读期间加载的实体在结束之后依然是只读的，修改它们不会被保存，
+ * 除非EntityManager随后会被关闭或者清空，否则不应该对它们做修改。
+ */
+class ReadOnlySession {
+
+    private static Logger logger = LoggerFactory.getLogger(ReadOnlySession.class);
+
+    private final Session session;
+
+    private final FlushMode flushMode;
+
+    private final boolean defaultReadOnly;
+
+    private boolean connectionReadOnly;
+
+    private ReadOnlySession(Session session) {
+        this.session = session;
+        this.flushMode = session.getHibernateFlushMode();
+        this.defaultReadOnly = session.isDefaultReadOnly();
+    }
+
+    /**
+     * 把会话切换为只读。
+     *
+     * @param em EntityManager
+     * @param connection 是否同时把JDBC连接标记为只读，应该在事务刚开始，还没有执行任何语句的时候使用
+     * @return 只读的会话，结束的时候需要调用close
+     */
+    static ReadOnlySession begin(EntityManager em, boolean connection) {
+        ReadOnlySession readOnly = new ReadOnlySession(em.unwrap(Session.class));
+        readOnly.session.setDefaultReadOnly(true);
+        readOnly.session.setHibernateFlushMode(FlushMode.MANUAL);
+        if (connection) {
+            try {
+                readOnly.session.doWork(conn -> {
+                    if (!conn.isReadOnly()) {
+                        conn.setReadOnly(true);
+                        readOnly.connectionReadOnly = true;
+                    }
+                });
+            } catch (Exception e) {
+                // 只读连接只是一个提示，驱动不支持的时候依然可以正常查询
+                logger.debug("can not mark connection as read-only", e);
+            }
+        }
+        return readOnly;
+    }
+
+    /**
+     * 恢复会话原来的设置，应该在事务结束之后调用。
+     *
+     * 连接在事务结束后通常已经归还给连接池，由连接池恢复它的只读状态，
+     * 只有仍然持有连接的时候才需要在这里恢复。
+     */
+    void close() {
+        if (!session.isOpen()) {
+            return;
+        }
+        session.setDefaultReadOnly(defaultReadOnly);
+        session.setHibernateFlushMode(flushMode);
+        if (!connectionReadOnly) {
+            return;
+        }
+        SessionImplementor implementor = session.unwrap(SessionImplementor.class);
+        if (!implementor.getJdbcCoordinator().getLogicalConnection().isPhysicallyConnected()) {
+            return;
+        }
+        try {
+            session.doWork(conn -> conn.setReadOnly(false));
+        } catch (Exception e) {
+            logger.warn("can not restore the read-only state of connection", e);
+        }
+    }
+
+}
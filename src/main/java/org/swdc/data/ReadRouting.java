@@ -0,0 +1,57 @@
+package org.swdc.data;
+
+/**
+ * 标记当前线程正在为只读的操作获取连接，配置了只读副本的时候，
+ * RoutingConnectionProvider据此把连接请求交给副本的连接池。
+ *
+ * Hibernate在事务开始的时候获取连接，事务中之后的语句都使用这个连接，
+ * 所以只需要在开启事务的时候标记，已经在事务中的查询自然留在事务的连接上。
+ */
+class ReadRouting {
+
+    private static final ThreadLocal<Boolean> reading = new ThreadLocal<>();
+
+    private static volatile boolean enabled = false;
+
+    private ReadRouting() {
+    }
+
+    static void enable(boolean enabled) {
+        ReadRouting.enabled = enabled;
+    }
+
+    /**
+     * 设置当前线程获取连接的方式。
+     *
+     * @param read 是否从只读副本获取连接
+     * @return 原来的设置，结束的时候交给restore
+     */
+    static boolean route(boolean read) {
+        if (!enabled) {
+            return false;
+        }
+        boolean previous = isReading();
+        if (read) {
+            reading.set(Boolean.TRUE);
+        } else {
+            reading.remove();
+        }
+        return previous;
+    }
+
+    static void restore(boolean previous) {
+        if (!enabled) {
+            return;
+        }
+        if (previous) {
+            reading.set(Boolean.TRUE);
+        } else {
+            reading.remove();
+        }
+    }
+
+    static boolean isReading() {
+        return reading.get() != null;
+    }
+
+}
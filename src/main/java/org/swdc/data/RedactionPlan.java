@@ -0,0 +1,193 @@
+package org.swdc.data;
+
+import jakarta.persistence.Entity;
+import org.swdc.ours.common.type.ClassTypeAndMethods;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StatelessHelper.safety使用的清理计划。
+ *
+ * 每个类只分析一次：需要清空的StatelessPrivate字段，以及可能（直接或者间接）
+ * 包含StatelessPrivate字段的属性。其他的属性，以及整个对象图中都不可能
+ * 包含StatelessPrivate的子树，在清理的时候会被直接跳过，不再调用它们的Getter。
+ *
+ * 是否可能包含按照属性声明的类型（集合按照元素的类型）以及已知的实体子类判断，
+ * 声明为接口、抽象类等无法确定的类型时，会按照运行时的类型再判断一次。
+ */
+class RedactionPlan {
+
+    private static final Map<Class, RedactionPlan> plans = new ConcurrentHashMap<>();
+
+    private static final Map<Class, Boolean> containsPrivate = new ConcurrentHashMap<>();
+
+    private static final RedactionPlan EMPTY = new RedactionPlan();
+
+    private final List<EntityMetadata.Property> privates;
+
+    private final List<EntityMetadata.Property> descends;
+
+    private RedactionPlan() {
+        this.privates = Collections.emptyList();
+        this.descends = Collections.emptyList();
+    }
+
+    private RedactionPlan(Class type) {
+        List<EntityMetadata.Property> privates = new ArrayList<>();
+        List<EntityMetadata.Property> descends = new ArrayList<>();
+        for (EntityMetadata.Property property : EntityMetadata.of(type).getProperties()) {
+            if (property.isPrivacy()) {
+                privates.add(property);
+            } else if (!property.isBasic() && !property.isBasicElements() && mayContainPrivate(property)) {
+                descends.add(property);
+            }
+        }
+        this.privates = Collections.unmodifiableList(privates);
+        this.descends = Collections.unmodifiableList(descends);
+    }
+
+    static RedactionPlan of(Class type) {
+        if (isOpaque(type)) {
+            return EMPTY;
+        }
+        RedactionPlan plan = plans.get(type);
+        if (plan != null) {
+            return plan;
+        }
+        return plans.computeIfAbsent(type, RedactionPlan::new);
+    }
+
+    /**
+     * @return 需要清空的字段
+     */
+    List<EntityMetadata.Property> getPrivates() {
+        return privates;
+    }
+
+    /**
+     * @return 需要继续处理的属性
+     */
+    List<EntityMetadata.Property> getDescends() {
+        return descends;
+    }
+
+    /**
+     * @return 此类型的对象是否完全不需要处理
+     */
+    boolean isEmpty() {
+        return privates.isEmpty() && descends.isEmpty();
+    }
+
+    private static boolean mayContainPrivate(EntityMetadata.Property property) {
+        Class target = target(property);
+        return target == null || mayContainPrivate(target);
+    }
+
+    /**
+     * 属性的值（集合则是元素）声明的类型，无法确定的时候返回null。
+     */
+    private static Class target(EntityMetadata.Property property) {
+        if (!Collection.class.isAssignableFrom(property.getType())) {
+            return property.getType();
+        }
+        List<Class> params = ClassTypeAndMethods.getFieldParameters(property.getField());
+        return params.isEmpty() ? null : params.get(0);
+    }
+
+    /**
+     * 从此类型出发的对象图中是否可能存在StatelessPrivate字段。
+     *
+     * 每个类型都单独遍历一次类型图，不缓存遍历中间的结果，
+     * 以免循环引用中的类型在遍历尚未完成时被误判为不包含。
+     */
+    private static boolean mayContainPrivate(Class type) {
+        Boolean cached = containsPrivate.get(type);
+        if (cached != null) {
+            return cached;
+        }
+        boolean result = false;
+        Set<Class> visited = new HashSet<>();
+        Deque<Class> pending = new ArrayDeque<>();
+        pending.push(type);
+        while (!pending.isEmpty() && !result) {
+            Class current = pending.pop();
+            if (current == Object.class) {
+                // 声明为Object的属性可能是任何对象
+                result = true;
+                break;
+            }
+            if (!visited.add(current) || isOpaque(current)) {
+                continue;
+            }
+            if (isUnknown(current)) {
+                result = true;
+                break;
+            }
+            for (Class candidate : withSubclasses(current)) {
+                for (EntityMetadata.Property property : EntityMetadata.of(candidate).getProperties()) {
+                    if (property.isPrivacy()) {
+                        result = true;
+                        break;
+                    }
+                    if (property.isBasic() || property.isBasicElements()) {
+                        continue;
+                    }
+                    Class target = target(property);
+                    if (target == null) {
+                        result = true;
+                        break;
+                    }
+                    pending.push(target);
+                }
+                if (result) {
+                    break;
+                }
+            }
+        }
+        containsPrivate.put(type, result);
+        return result;
+    }
+
+    /**
+     * JDK中的类型、基本类型和数组，它们的内容不会有StatelessPrivate字段。
+     */
+    private static boolean isOpaque(Class type) {
+        return type.isPrimitive() || type.isArray() || type.isEnum() || type.getClassLoader() == null ||
+                ClassTypeAndMethods.isBasicType(type) || ClassTypeAndMethods.isBoxedType(type);
+    }
+
+    /**
+     * 接口和抽象类无法在分析的时候确定运行时的类型。
+     */
+    private static boolean isUnknown(Class type) {
+        return type.getAnnotation(Entity.class) == null &&
+                (type.isInterface() || Modifier.isAbstract(type.getModifiers()));
+    }
+
+    /**
+     * 实体的属性在运行时可能是它的子类，子类来自数据库启动时注册的全部实体。
+     */
+    private static List<Class> withSubclasses(Class type) {
+        List<Class> result = new ArrayList<>();
+        result.add(type);
+        if (type.getAnnotation(Entity.class) != null) {
+            for (Class entity : EntityMetadata.entityTypes()) {
+                if (entity != type && type.isAssignableFrom(entity)) {
+                    result.add(entity);
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -2,6 +2,8 @@ package org.swdc.data;
 
 import jakarta.annotation.Resource;
 import jakarta.inject.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.swdc.data.anno.Repository;
 import org.swdc.dependency.DependencyContext;
 import org.swdc.dependency.DependencyScope;
@@ -19,6 +21,13 @@ import java.util.stream.Collectors;
 
 public class RepositoryManager implements DependencyScope {
 
+    /**
+     * 编译期生成的Repository实现类的类名后缀。
+     */
+    public static final String GENERATED_SUFFIX = "_Impl";
+
+    private Logger logger = LoggerFactory.getLogger(RepositoryManager.class);
+
     private Map<Class,List<Object>> typedEntities = new ConcurrentHashMap<>();
     private Map<String,Object> namedEntities = new ConcurrentHashMap<>();
 
@@ -35,13 +44,18 @@ public class RepositoryManager implements DependencyScope {
             return (T)list.get(0);
         }
 
-        DefaultRepository repository = new DefaultRepository();
         ParameterizedType parameterizedType = (ParameterizedType) clazz.getGenericInterfaces()[0];
 
         Class entityClass = (Class) parameterizedType.getActualTypeArguments()[0];
-
-        repository.init(this.context.getByClass(EMFProviderFactory.class), entityClass);
-        JPARepository jpaRepository = (JPARepository) Proxy.newProxyInstance(getClass().getClassLoader(),new Class[]{clazz},repository);
+        EMFProviderFactory factory = this.context.getByClass(EMFProviderFactory.class);
+
+        // 优先使用编译期生成的实现类，没有的话再使用动态代理。
+        JPARepository jpaRepository = createGenerated(clazz, entityClass, factory);
+        if (jpaRepository == null) {
+            DefaultRepository repository = new DefaultRepository();
+            repository.init(factory, entityClass);
+            jpaRepository = (JPARepository) Proxy.newProxyInstance(getClass().getClassLoader(),new Class[]{clazz},repository);
+        }
 
         AnnotationDescription named = Annotations.findAnnotationIn(descs,Named.class);
         AnnotationDescription resource = Annotations.findAnnotationIn(descs,Resource.class);
@@ -58,6 +72,32 @@ public class RepositoryManager implements DependencyScope {
         return (T)jpaRepository;
     }
 
+    /**
+     * 创建由swdata-processor在编译期生成的Repository实现类。
+     *
+     * @param clazz Repository接口
+     * @param entityClass 实体类型
+     * @param factory EntityManager工厂
+     * @return Repository的实例，没有生成的实现类时返回null
+     */
+    private JPARepository createGenerated(Class clazz, Class entityClass, EMFProviderFactory factory) {
+        String generatedName = clazz.getName().replace('$','_') + GENERATED_SUFFIX;
+        try {
+            Class generated = Class.forName(generatedName, true, clazz.getClassLoader());
+            if (!clazz.isAssignableFrom(generated) || !DefaultRepository.class.isAssignableFrom(generated)) {
+                return null;
+            }
+            DefaultRepository repository = (DefaultRepository) generated.getConstructor().newInstance();
+            repository.init(factory, entityClass);
+            return (JPARepository) repository;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            logger.warn("can not create generated repository: " + generatedName + ", fallback to proxy.", e);
+            return null;
+        }
+    }
+
     @Override
     public <T> T getByName(String name) {
         return (T)this.namedEntities.get(name);
@@ -0,0 +1,93 @@
+package org.swdc.data;
+
+import jakarta.persistence.LockTimeoutException;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.PessimisticLockException;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 事务的重试策略。
+ *
+ * 死锁、锁等待超时和乐观锁冲突通常是暂时的，回滚之后重新执行整个事务一般就能成功，
+ * 其他的异常不会重试。两次重试之间按照指数增长等待，并加入随机的抖动，
+ * 以免冲突的事务再次同时开始。
+ */
+class RetryPolicy {
+
+    private final int retries;
+
+    private final long backoff;
+
+    private final long maxBackoff;
+
+    RetryPolicy(int retries, long backoff, long maxBackoff) {
+        this.retries = Math.max(retries, 0);
+        this.backoff = Math.max(backoff, 1);
+        this.maxBackoff = Math.max(maxBackoff, this.backoff);
+    }
+
+    /**
+     * @param attempt 已经失败的次数，从1开始
+     * @param e 失败的原因
+     * @return 是否应该再执行一次
+     */
+    boolean shouldRetry(int attempt, Throwable e) {
+        return attempt <= retries && isTransient(e);
+    }
+
+    /**
+     * 等待到下一次重试。
+     *
+     * @param attempt 已经失败的次数，从1开始
+     * @return 等待期间线程没有被中断
+     */
+    boolean await(int attempt) {
+        long delay = backoff << Math.min(attempt - 1, 20);
+        delay = Math.min(delay, maxBackoff);
+        // 在delay的一半到全部之间随机等待
+        long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            Thread.sleep(wait);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 沿着异常的原因判断是否是暂时的锁冲突。
+     */
+    static boolean isTransient(Throwable e) {
+        int depth = 0;
+        while (e != null && depth < 16) {
+            if (e instanceof OptimisticLockException || e instanceof PessimisticLockException ||
+                    e instanceof LockTimeoutException || e instanceof StaleStateException ||
+                    e instanceof LockAcquisitionException ||
+                    e instanceof org.hibernate.PessimisticLockException ||
+                    e instanceof org.hibernate.exception.LockTimeoutException ||
+                    e instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            if (e instanceof SQLException) {
+                String state = ((SQLException) e).getSQLState();
+                // 40xxx：事务被数据库回滚（死锁、序列化失败），55P03：PostgreSQL无法获得锁
+                if (state != null && (state.startsWith("40") || state.equals("55P03"))) {
+                    return true;
+                }
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+            e = e.getCause();
+            depth ++;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.swdc.data;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.HibernateException;
+import org.hibernate.hikaricp.internal.HikariCPConnectionProvider;
+import org.hibernate.hikaricp.internal.HikariConfigurationUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带有只读副本的连接池。
+ *
+ * 主库的连接池与HikariCPConnectionProvider相同，副本通过swdc.data.replica.序号.url配置，
+ * 序号从0开始连续编号，用户名、密码和连接池的大小默认与主库相同，
+ * 可以通过swdc.data.replica.序号.username、.password和.pool-size单独指定。
+ *
+ * 只读的查询和事务（见ReadRouting）轮流使用各个副本，副本无法获取连接的时候改为使用主库，
+ * 其他的连接请求总是交给主库。表结构只在主库上维护，副本的内容由数据库自己的复制保证。
+ */
+public class RoutingConnectionProvider extends HikariCPConnectionProvider {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = LoggerFactory.getLogger(RoutingConnectionProvider.class);
+
+    static final String REPLICA_PREFIX = "swdc.data.replica.";
+
+    private final List<HikariDataSource> replicas = new ArrayList<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public void configure(Map<String, Object> props) throws HibernateException {
+        super.configure(props);
+        for (int index = 0; props.get(REPLICA_PREFIX + index + ".url") != null; index ++) {
+            Map<String, Object> replicaProps = new HashMap<>(props);
+            // 连接信息只使用hibernate.connection.*，以免JPA的同名配置覆盖副本的设置
+            replicaProps.keySet().removeIf(key -> key.startsWith("jakarta.persistence.jdbc.") || key.startsWith("javax.persistence.jdbc."));
+            replicaProps.put("hibernate.connection.url", props.get(REPLICA_PREFIX + index + ".url"));
+            copy(props, replicaProps, REPLICA_PREFIX + index + ".username", "hibernate.connection.username");
+            copy(props, replicaProps, REPLICA_PREFIX + index + ".password", "hibernate.connection.password");
+            copy(props, replicaProps, REPLICA_PREFIX + index + ".pool-size", "hibernate.hikari.maximumPoolSize");
+            replicaProps.put("hibernate.hikari.poolName", "replica-" + index);
+            try {
+                HikariConfig config = HikariConfigurationUtil.loadConfiguration(replicaProps);
+                replicas.add(new HikariDataSource(config));
+            } catch (Exception e) {
+                stop();
+                throw new HibernateException("can not start replica " + index, e);
+            }
+        }
+        logger.info("connection routing is ready with " + replicas.size() + " read replicas.");
+    }
+
+    private static void copy(Map<String, Object> props, Map<String, Object> target, String from, String to) {
+        Object value = props.get(from);
+        if (value != null) {
+            target.put(to, value);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!replicas.isEmpty() && ReadRouting.isReading()) {
+            HikariDataSource replica = replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                logger.warn("replica " + replica.getPoolName() + " is not available, use the primary: " + e.getMessage());
+            }
+        }
+        return super.getConnection();
+    }
+
+    /**
+     * @return 副本的连接池
+     */
+    List<HikariDataSource> getReplicas() {
+        return Collections.unmodifiableList(replicas);
+    }
+
+    @Override
+    public void stop() {
+        for (HikariDataSource replica : replicas) {
+            replica.close();
+        }
+        replicas.clear();
+        super.stop();
+    }
+
+}
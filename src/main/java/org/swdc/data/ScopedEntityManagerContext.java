@@ -0,0 +1,24 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+
+/**
+ * 只在明确的作用域中提供EntityManager的上下文。
+ *
+ * EntityManager只存在于EMFProviderFactory.unitOfWork的执行期间，
+ * 作用域结束的时候就会被关闭，不会有EntityManager遗留在线程上，
+ * 语义上和ScopedValue一致。
+ */
+public class ScopedEntityManagerContext extends ThreadLocalEntityManagerContext {
+
+    @Override
+    public boolean isImplicit() {
+        return false;
+    }
+
+    @Override
+    public void bind(EntityManager entityManager) {
+        throw new UnsupportedOperationException("scoped context can only be used in unit of work.");
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.swdc.data;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 分页查询的一页数据，只知道是否还有下一页，不需要额外的count查询。
+ *
+ * @param <E> 数据的类型
+ */
+public class Slice<E> implements Iterable<E> {
+
+    private final List<E> content;
+
+    private final Pageable pageable;
+
+    private final boolean hasNext;
+
+    private final Object lastKey;
+
+    public Slice(List<E> content, Pageable pageable, boolean hasNext, Object lastKey) {
+        this.content = content == null ? Collections.emptyList() : content;
+        this.pageable = pageable;
+        this.hasNext = hasNext;
+        this.lastKey = lastKey;
+    }
+
+    public List<E> getContent() {
+        return content;
+    }
+
+    public Pageable getPageable() {
+        return pageable;
+    }
+
+    public boolean hasNext() {
+        return hasNext;
+    }
+
+    public boolean isEmpty() {
+        return content.isEmpty();
+    }
+
+    public int getNumberOfElements() {
+        return content.size();
+    }
+
+    /**
+     * @return 下一页的分页参数，没有下一页的时候返回null
+     */
+    public Pageable nextPageable() {
+        if (!hasNext || pageable == null) {
+            return null;
+        }
+        return pageable.isKeyset() ? pageable.next(lastKey) : pageable.next();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return content.iterator();
+    }
+
+}
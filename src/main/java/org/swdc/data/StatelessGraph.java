@@ -0,0 +1,280 @@
+package org.swdc.data;
+
+import org.hibernate.Hibernate;
+import org.swdc.data.anno.StatelessIgnore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 保持对象图结构的Stateless复制。
+ *
+ * 与StatelessHelper.stateless不同，这里用一个以（实体类型，Id）为键的Map记录已经复制的实体，
+ * 同一个实体无论被引用多少次都只复制一次，复制结果中的引用关系与原来的对象图一致，
+ * 循环引用也会指向已经复制的对象，因此每个实体的处理都是O(1)的。
+ *
+ * StatelessIgnore(reverse = false)的字段不会被复制，
+ * StatelessIgnore(reverse = true)的字段只在实体作为其他实体的内容时不会被复制，
+ * 实体只要作为copy或者copyAll的参数出现过，就会复制这些字段。
+ *
+ * 指定FetchPlan的时候只复制其中的关联，其他的关联保持为空，
+ * 还没有加载的普通字段（例如延迟加载的ElementCollection）也保持为空。
+ *
+ * 同一个StatelessGraph多次调用copy的时候，这些复制结果之间也会共享引用，
+ * 例如复制一组订单的时候，同一个客户只会出现一次。本类不是线程安全的。
+ */
+public class StatelessGraph {
+
+    /**
+     * 已经复制的实体，键为EntityKey，没有Id的对象放在transients中。
+     */
+    private final Map<EntityKey, Node> copies = new HashMap<>();
+
+    private final Map<Object, Node> transients = new IdentityHashMap<>();
+
+    /**
+     * 需要复制的关联，为null的时候复制全部关联。
+     */
+    private final FetchPlan plan;
+
+    /**
+     * Set的元素需要等对象图复制完成后才能加入，
+     * 否则元素的hashCode可能是基于还没有复制完的字段计算的。
+     */
+    private final List<Object[]> pendingSets = new ArrayList<>();
+
+    private int depth;
+
+    public StatelessGraph() {
+        this(null);
+    }
+
+    /**
+     * @param plan 需要复制的关联，不在其中的关联保持为空，不会触发延迟加载
+     */
+    public StatelessGraph(FetchPlan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * 复制实体以及它关联的实体。
+     *
+     * @param entity 被Hibernate管理的数据对象
+     * @param <T> 数据对象的类型
+     * @return 复制后的DTO对象
+     */
+    public <T> T copy(T entity) {
+        Diagnostics.Scope scope = Diagnostics.begin(StatelessGraph.class, "copy");
+        try {
+            return (T) copy(entity, false, "");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            Diagnostics.end(scope, null, 1);
+        }
+    }
+
+    /**
+     * 复制一组实体，它们之间共享的实体只会复制一次。
+     *
+     * @param entities 被Hibernate管理的数据对象
+     * @param <T> 数据对象的类型
+     * @return 复制后的DTO对象，顺序与参数一致
+     */
+    public <T> List<T> copyAll(Collection<T> entities) {
+        if (entities == null) {
+            return Collections.emptyList();
+        }
+        Diagnostics.Scope scope = Diagnostics.begin(StatelessGraph.class, "copyAll");
+        List<T> result = new ArrayList<>(entities.size());
+        try {
+            for (T entity : entities) {
+                result.add((T) copy(entity, false, ""));
+            }
+            return result;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            Diagnostics.end(scope, null, result.size());
+        }
+    }
+
+    private Object copy(Object entity, boolean nested, String path) throws Exception {
+        if (entity == null) {
+            return null;
+        }
+        EntityMetadata metadata = EntityMetadata.of(entity.getClass());
+        Object id = metadata.getId(entity);
+        EntityKey key = id == null ? null : new EntityKey(metadata.getRootType(), id);
+        Node node = key == null ? transients.get(entity) : copies.get(key);
+        if (node != null) {
+            if (!nested && !node.root) {
+                // 之前作为其他实体的内容复制过，现在它是被复制的实体本身，
+                // 补上StatelessIgnore(reverse = true)的字段，结果与访问的顺序无关。
+                node.root = true;
+                copyProperties(node, entity, metadata);
+                copyRelations(node, entity, metadata, path);
+            } else if (plan != null) {
+                // 同一个实体在其他路径上可能需要更多的关联
+                copyRelations(node, entity, metadata, path);
+            }
+            return node.instance;
+        }
+
+        node = new Node(metadata.newInstance(), !nested);
+        // 先登记再复制字段，循环引用回到这里的时候会得到这个对象。
+        if (key == null) {
+            transients.put(entity, node);
+        } else {
+            copies.put(key, node);
+        }
+        copyProperties(node, entity, metadata);
+        copyRelations(node, entity, metadata, path);
+        return node.instance;
+    }
+
+    private void copyProperties(Node node, Object entity, EntityMetadata metadata) {
+        for (EntityMetadata.Property property : metadata.getStatelessProperties()) {
+            String name = property.getField().getName();
+            if (property.getRelation() != EntityMetadata.Relation.NONE || ignored(property, !node.root) || node.copied.contains(name)) {
+                continue;
+            }
+            if (plan != null && !Hibernate.isPropertyInitialized(entity, name)) {
+                // 延迟加载的字段同样不在FetchPlan中，保持为空
+                continue;
+            }
+            Object value = property.read(entity);
+            if (plan != null && !Hibernate.isInitialized(value)) {
+                // 例如没有加载的ElementCollection
+                continue;
+            }
+            node.copied.add(name);
+            property.write(node.instance, value);
+        }
+    }
+
+    private void copyRelations(Node node, Object entity, EntityMetadata metadata, String path) throws Exception {
+        depth ++;
+        try {
+            for (EntityMetadata.Property property : metadata.getStatelessProperties()) {
+                if (property.getRelation() == EntityMetadata.Relation.NONE || ignored(property, !node.root)) {
+                    continue;
+                }
+                String name = property.getField().getName();
+                String childPath = path.isEmpty() ? name : path + "." + name;
+                if (node.copied.contains(name) || (plan != null && !plan.includes(childPath))) {
+                    continue;
+                }
+                node.copied.add(name);
+                if (property.getRelation() == EntityMetadata.Relation.COLLECTION) {
+                    Class type = property.getType();
+                    if (List.class.isAssignableFrom(type) || Set.class.isAssignableFrom(type)) {
+                        property.write(node.instance, copyCollection(property, (Collection) property.read(entity), childPath));
+                    }
+                } else {
+                    property.write(node.instance, copy(property.read(entity), true, childPath));
+                }
+            }
+        } finally {
+            depth --;
+        }
+        if (depth == 0) {
+            fillSets();
+        }
+    }
+
+    private static boolean ignored(EntityMetadata.Property property, boolean nested) {
+        StatelessIgnore ignore = property.getIgnore();
+        return ignore != null && (!ignore.reverse() || nested);
+    }
+
+    private Object copyCollection(EntityMetadata.Property property, Collection collection, String path) throws Exception {
+        if (List.class.isAssignableFrom(property.getType())) {
+            if (collection == null) {
+                return Collections.emptyList();
+            }
+            List result = new ArrayList(collection.size());
+            for (Object item : collection) {
+                result.add(copy(item, true, path));
+            }
+            return result;
+        } else if (Set.class.isAssignableFrom(property.getType())) {
+            if (collection == null) {
+                return Collections.emptySet();
+            }
+            List items = new ArrayList(collection.size());
+            for (Object item : collection) {
+                items.add(copy(item, true, path));
+            }
+            Set result = new HashSet(Math.max(16, (int) (items.size() / .75f) + 1));
+            pendingSets.add(new Object[] { result, items });
+            return result;
+        }
+        return collection;
+    }
+
+    private void fillSets() {
+        for (Object[] pending : pendingSets) {
+            ((Set) pending[0]).addAll((List) pending[1]);
+        }
+        pendingSets.clear();
+    }
+
+    private static class Node {
+
+        private final Object instance;
+
+        /**
+         * 已经复制的字段和关联
+         */
+        private final Set<String> copied = new HashSet<>();
+
+        /**
+         * 是否作为copy或者copyAll的参数被复制过，否则它只是其他实体的内容
+         */
+        private boolean root;
+
+        Node(Object instance, boolean root) {
+            this.instance = instance;
+            this.root = root;
+        }
+    }
+
+    private static class EntityKey {
+
+        private final Class type;
+
+        private final Object id;
+
+        EntityKey(Class type, Object id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EntityKey)) {
+                return false;
+            }
+            EntityKey other = (EntityKey) o;
+            return type == other.type && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, id);
+        }
+    }
+
+}
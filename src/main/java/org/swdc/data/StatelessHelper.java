@@ -1,16 +1,12 @@
 package org.swdc.data;
 
 import jakarta.persistence.*;
-import org.hibernate.proxy.HibernateProxy;
 import org.swdc.data.anno.StatelessIgnore;
-import org.swdc.data.anno.StatelessPrivate;
-import org.swdc.ours.common.type.ClassTypeAndMethods;
 
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * 本类的目的是通过反射达成对原有的Entity类进行直接的复用，
@@ -21,6 +17,11 @@ import java.util.stream.Collectors;
  */
 public class StatelessHelper {
 
+    /**
+     * 批量复制的时候，少于此数量的数据不会被并行处理。
+     */
+    private static final int PARALLEL_THRESHOLD = 1024;
+
     /**
      * 复制此Entity的内容，返回一个与Hibernate代理无关的DTO对象。
      *
@@ -37,7 +38,12 @@ public class StatelessHelper {
         if (idField == null) {
             throw new RuntimeException("can not found a field annotated with Id");
         }
-        return stateless(entity,new HashMap<>());
+        Diagnostics.Scope scope = Diagnostics.begin(StatelessHelper.class, "stateless");
+        try {
+            return stateless(entity,new HashMap<>());
+        } finally {
+            Diagnostics.end(scope, null, 1);
+        }
     }
 
     /**
@@ -55,118 +61,86 @@ public class StatelessHelper {
      * @param <T> 对象的类型
      * @return 复制后的EntityDTO
      */
-    private static <T> T stateless(T entity, Map<Class,Deque<Object>> typedReversId) {
+    private static <T> T stateless(T entity, Map<Class,ReverseIds> typedReversId) {
         try {
             if (entity == null) {
                 return null;
             }
 
-            Class type = entity.getClass();
-            Field idField = getIdField(type);
-            idField.setAccessible(true);
-            Object entityId = idField.get(entity);
-
-            if (entity.getClass().getName().contains("HibernateProxy")) {
-                HibernateProxy proxy = (HibernateProxy)entity;
-                type = proxy.getHibernateLazyInitializer().getPersistentClass();
-            }
-            T instance = (T)type.getConstructor().newInstance();
-            Class currentType = type;
-            while (currentType != Object.class) {
-                Field[] fields = currentType.getDeclaredFields();
-                for (Field field: fields) {
-                    // Hibernate的代理会使直接操作字段变得很麻烦，
-                    // 所以使用对应的Getter和Setter进行操作。
-                    Method getter = ClassTypeAndMethods.extractGetter(field);
-                    Method setter = ClassTypeAndMethods.extractSetter(field);
-                    if (getter == null || setter == null) {
+            EntityMetadata metadata = EntityMetadata.of(entity.getClass());
+            Object entityId = metadata.getId(entity);
+
+            T instance = (T)metadata.newInstance();
+            // Hibernate的代理会使直接操作字段变得很麻烦，
+            // 所以使用对应的Getter和Setter进行操作，它们在元数据中被生成为直接调用。
+            for (EntityMetadata.Property property: metadata.getStatelessProperties()) {
+                ReverseIds reversId = typedReversId.computeIfAbsent(
+                        property.getType(), k -> new ReverseIds()
+                );
+
+                StatelessIgnore ignore = property.getIgnore();
+                if (ignore != null) {
+                    if (ignore.reverse() && reversId.contains(entityId)) {
+                       continue;
+                    } else if (!ignore.reverse()){
                         continue;
                     }
-
-                    Deque<Object> reversId = typedReversId.computeIfAbsent(
-                            field.getType(), k -> new ArrayDeque<>()
-                    );
-
-                    if (field.getAnnotation(StatelessIgnore.class) != null) {
-                        StatelessIgnore ignore = field.getAnnotation(StatelessIgnore.class);
-                        if (ignore.reverse() && reversId.contains(entityId)) {
-                           continue;
-                        } else if (!ignore.reverse()){
-                            continue;
-                        }
-                    }
-                    if (field.getAnnotation(ManyToOne.class) != null) {
-
+                }
+                switch (property.getRelation()) {
+                    case MANY_TO_ONE:
+                    case ONE_TO_ONE: {
                         if (reversId.contains(entityId)) {
                             continue;
                         }
 
-                        Object obj = getter.invoke(entity);
+                        Object target = property.read(entity);
 
                         reversId.push(entityId);
-                        setter.invoke(instance,stateless(obj,typedReversId));
-                        reversId.pop();
-
-                    } else if (field.getType().getAnnotation(Entity.class) != null) {
-
-                        if (field.getAnnotation(OneToOne.class) != null) {
-
-                            if (reversId.contains(entityId)) {
-                                continue;
-                            }
-
-                            reversId.push(entityId);
-                            Object target = getter.invoke(entity);
-                            setter.invoke(instance, stateless(target,typedReversId));
-                            reversId.pop();
-
-                        } else {
-                            Object target = getter.invoke(entity);
-                            setter.invoke(instance, stateless(target,typedReversId));
-                        }
-
-                    } else if (field.getAnnotation(OneToMany.class) != null || field.getAnnotation(ManyToMany.class) != null) {
+                        property.write(instance,stateless(target,typedReversId));
+                        reversId.pop(entityId);
+                        break;
+                    }
+                    case ENTITY: {
+                        Object target = property.read(entity);
+                        property.write(instance, stateless(target,typedReversId));
+                        break;
+                    }
+                    case COLLECTION: {
                         if (reversId.contains(entityId)) {
                             continue;
                         }
                         reversId.push(entityId);
-                        Collection<Object> collection = (Collection) getter.invoke(entity);
+                        Collection<Object> collection = (Collection) property.read(entity);
 
-                        if (List.class.isAssignableFrom(field.getType())) {
+                        if (List.class.isAssignableFrom(property.getType())) {
                             if (collection == null) {
-                                setter.invoke(instance,Collections.emptyList());
+                                property.write(instance,Collections.emptyList());
+                                reversId.pop(entityId);
                                 continue;
                             }
-                            List rest = collection.stream()
-                                    .map(e -> stateless(e,typedReversId))
-                                    .collect(Collectors.toList());
-                            setter.invoke(instance,rest);
-                        } else if (Set.class.isAssignableFrom(field.getType())){
+                            List rest = new ArrayList(collection.size());
+                            for (Object item : collection) {
+                                rest.add(stateless(item,typedReversId));
+                            }
+                            property.write(instance,rest);
+                        } else if (Set.class.isAssignableFrom(property.getType())){
                             if (collection == null) {
-                                setter.invoke(instance,Collections.emptySet());
+                                property.write(instance,Collections.emptySet());
+                                reversId.pop(entityId);
                                 continue;
                             }
-                            Set rest = collection.stream()
-                                    .map(e -> stateless(e,typedReversId))
-                                    .collect(Collectors.toSet());
-                            setter.invoke(instance,rest);
+                            Set rest = new HashSet();
+                            for (Object item : collection) {
+                                rest.add(stateless(item,typedReversId));
+                            }
+                            property.write(instance,rest);
                         }
-                        reversId.pop();
-                    } else {
-                        setter.invoke(instance,getter.invoke(entity));
+                        reversId.pop(entityId);
+                        break;
                     }
+                    default:
+                        property.write(instance,property.read(entity));
                 }
-
-                currentType = currentType.getSuperclass();
-                if (currentType == Object.class) {
-                    break;
-                }
-
-                Annotation anno = currentType.getAnnotation(MappedSuperclass.class);
-                if (anno == null) {
-                    break;
-                }
-
             }
 
             return instance;
@@ -175,6 +149,38 @@ public class StatelessHelper {
         }
     }
 
+    /**
+     * 复制此Entity以及它关联的全部实体，同一个实体（类型和Id相同）只会被复制一次，
+     * 复制的结果中共享的引用也会保持共享，循环引用会指向已经复制的对象。
+     *
+     * 需要复制多个实体并且让它们之间共享引用的时候，请使用StatelessGraph。
+     *
+     * @see StatelessGraph
+     *
+     * @param entity 被Hibernate管理的数据对象
+     * @param <T> 数据对象的类型
+     * @return 复制后的DTO对象
+     */
+    public static <T> T statelessGraph(T entity) {
+        return new StatelessGraph().copy(entity);
+    }
+
+    /**
+     * 按照FetchPlan复制此Entity，只有FetchPlan中的关联会被复制，
+     * 其他的关联保持为空，不会触发延迟加载。
+     *
+     * 实体最好通过Repository的getOne(id, plan)或者getAll(plan)加载，
+     * 这样FetchPlan中的关联已经在同一次查询中被加载了。
+     *
+     * @param entity 被Hibernate管理的数据对象
+     * @param plan 需要复制的关联
+     * @param <T> 数据对象的类型
+     * @return 复制后的DTO对象
+     */
+    public static <T> T stateless(T entity, FetchPlan plan) {
+        return new StatelessGraph(plan).copy(entity);
+    }
+
     /**
      * 将私密字段清空，防止泄露敏感信息。
      * 被注解@StatelessPrivate注解的字段是敏感字段，它们会正常出现在Stateless的结果中，
@@ -185,87 +191,185 @@ public class StatelessHelper {
      * @param <T> 实体对象的类型
      */
     public static <T> T safety(T entity) {
-        try {
-            if (entity == null) {
-                return null;
-            }
-
-            Class type = entity.getClass();
-            Class currentType = type;
-            while (currentType != Object.class) {
-                Field[] fields = currentType.getDeclaredFields();
-                for (Field field: fields) {
-
-                    Method setter = ClassTypeAndMethods.extractSetter(field);
-                    Method getter = ClassTypeAndMethods.extractGetter(field);
-                    StatelessPrivate statelessPrivate = field.getAnnotation(StatelessPrivate.class);
-                    if (setter == null || getter == null) {
-                        continue;
-                    }
+        return safety(entity, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
 
-                    if (statelessPrivate != null) {
-                        setter.invoke(entity,(Object) null);
-                    } else {
-                        if (ClassTypeAndMethods.isBasicType(field.getType()) || ClassTypeAndMethods.isBoxedType(field.getType())) {
-                            continue;
-                        } else {
-                            Object data = getter.invoke(entity);
-                            if (data == null) {
-                                continue;
-                            }
-                            if (Collection.class.isAssignableFrom(field.getType())) {
-                                // 获取集合的泛型类型
-                                List<Class> param = ClassTypeAndMethods.getFieldParameters(field);
-                                if (!param.isEmpty()) {
-                                    // 如果是基本类型或者包装类，则忽略
-                                    if (ClassTypeAndMethods.isBoxedType(param.get(0)) || ClassTypeAndMethods.isBasicType(param.get(0))) {
-                                        continue;
-                                    }
-                                }
-                                // 如果是集合，则递归处理每个元素
-                                Collection collection = (Collection) data;
-                                for (Object o : collection) {
-                                    if (o == null) {
-                                        continue;
-                                    }
-                                    safety(o);
-                                }
-                            } else {
-                                safety(data);
-                            }
+    /**
+     * 按照每个类的RedactionPlan处理对象图，不可能包含私密字段的属性不会被读取。
+     * 使用显式的栈而不是递归，很深的对象图也不会导致栈溢出。
+     *
+     * @param visited 已经处理过的对象，同一个对象只处理一次，用以防止循环引用
+     */
+    private static <T> T safety(T entity, Set<Object> visited) {
+        if (entity == null) {
+            return null;
+        }
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(entity);
+        while (!pending.isEmpty()) {
+            Object current = pending.pop();
+            if (!visited.add(current)) {
+                continue;
+            }
+            RedactionPlan plan = RedactionPlan.of(current.getClass());
+            if (plan.isEmpty()) {
+                continue;
+            }
+            for (EntityMetadata.Property property: plan.getPrivates()) {
+                property.write(current,null);
+            }
+            for (EntityMetadata.Property property: plan.getDescends()) {
+                Object data = property.read(current);
+                if (data == null) {
+                    continue;
+                }
+                if (data instanceof Collection) {
+                    // 如果是集合，则处理每个元素
+                    for (Object o : (Collection) data) {
+                        if (o != null) {
+                            pending.push(o);
                         }
                     }
+                } else {
+                    pending.push(data);
                 }
-                currentType = currentType.getSuperclass();
             }
+        }
+        return entity;
+    }
 
-            return entity;
+    /**
+     * 复制一组实体，它们共用一个StatelessGraph，共享的实体只复制一次。
+     *
+     * @param entities 被Hibernate管理的数据对象
+     * @param <T> 数据对象的类型
+     * @return 复制后的DTO对象，顺序与参数一致
+     */
+    public static <T> List<T> statelessAll(Collection<T> entities) {
+        return statelessAll(entities, null, null);
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /**
+     * 复制一组实体，数量较多的时候分成若干批在ForkJoinPool中并行复制。
+     *
+     * 并行复制的时候每一批有自己的StatelessGraph，批与批之间共享的实体会被分别复制。
+     * 并行复制要求需要复制的数据已经加载完毕并脱离了持久化上下文
+     * （例如通过FetchPlan加载，并在工作单元结束后复制），
+     * 否则延迟加载会在多个线程中同时使用同一个EntityManager。
+     *
+     * @param entities 已经加载完毕的实体
+     * @param plan 需要复制的关联，为null的时候复制全部关联
+     * @param pool 用于并行复制的ForkJoinPool，为null的时候不并行
+     * @param <T> 数据对象的类型
+     * @return 复制后的DTO对象，顺序与参数一致
+     */
+    public static <T> List<T> statelessAll(Collection<T> entities, FetchPlan plan, ForkJoinPool pool) {
+        if (entities == null || entities.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<List<T>> batches = split(entities, pool);
+        if (batches.size() == 1) {
+            return new StatelessGraph(plan).copyAll(entities);
+        }
+        List<ForkJoinTask<List<T>>> tasks = new ArrayList<>(batches.size());
+        for (List<T> batch : batches) {
+            tasks.add(pool.submit(() -> new StatelessGraph(plan).copyAll(batch)));
+        }
+        List<T> result = new ArrayList<>(entities.size());
+        for (ForkJoinTask<List<T>> task : tasks) {
+            result.addAll(task.join());
         }
+        return result;
     }
 
+    /**
+     * 清空一组对象中的私密字段，同一个对象只处理一次。
+     *
+     * @param entities 实体对象
+     * @param <T> 实体对象的类型
+     * @return entities本身，用于链式调用。
+     */
+    public static <T, C extends Collection<T>> C safetyAll(C entities) {
+        return safetyAll(entities, null);
+    }
 
-    public static Field getIdField(Class target) {
-        Class clazz = target;
-        while (clazz != null) {
-            Field[] fields = clazz.getDeclaredFields();
-            for (Field field : fields) {
-                Id id = field.getAnnotation(Id.class);
-                if (id == null) {
-                    continue;
-                } else {
-                    return field;
-                }
-            }
-            clazz = clazz.getSuperclass();
-            if (clazz == Object.class) {
-                return null;
+    /**
+     * 清空一组对象中的私密字段，数量较多的时候分成若干批在ForkJoinPool中并行处理。
+     * 与statelessAll一样，并行处理要求对象已经脱离了持久化上下文。
+     *
+     * @param entities 实体对象
+     * @param pool 用于并行处理的ForkJoinPool，为null的时候不并行
+     * @param <T> 实体对象的类型
+     * @return entities本身，用于链式调用。
+     */
+    public static <T, C extends Collection<T>> C safetyAll(C entities, ForkJoinPool pool) {
+        if (entities == null || entities.isEmpty()) {
+            return entities;
+        }
+        List<List<T>> batches = split(entities, pool);
+        if (batches.size() == 1) {
+            Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (T entity : entities) {
+                safety(entity, visited);
             }
+            return entities;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(batches.size());
+        for (List<T> batch : batches) {
+            tasks.add(pool.submit(() -> {
+                Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (T entity : batch) {
+                    safety(entity, visited);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return entities;
+    }
+
+    /**
+     * 按照ForkJoinPool的并行度把数据分成若干批，数量少于PARALLEL_THRESHOLD的时候不拆分。
+     */
+    private static <T> List<List<T>> split(Collection<T> entities, ForkJoinPool pool) {
+        List<T> items = entities instanceof List ? (List<T>) entities : new ArrayList<>(entities);
+        if (pool == null || pool.getParallelism() < 2 || items.size() < PARALLEL_THRESHOLD) {
+            return Collections.singletonList(items);
         }
-        return null;
+        int size = Math.max(PARALLEL_THRESHOLD / 4, (items.size() + pool.getParallelism() * 4 - 1) / (pool.getParallelism() * 4));
+        List<List<T>> batches = new ArrayList<>();
+        for (int index = 0; index < items.size(); index += size) {
+            batches.add(items.subList(index, Math.min(index + size, items.size())));
+        }
+        return batches;
+    }
+
+
+    public static Field getIdField(Class target) {
+        return EntityMetadata.of(target).getIdField();
     }
 
+    /**
+     * 复制路径上的Id，push、pop和contains都是O(1)的。
+     * StatelessWriter使用相同的规则处理循环引用。
+     */
+    static class ReverseIds {
+
+        private final Map<Object, Integer> counts = new HashMap<>();
+
+        void push(Object id) {
+            counts.merge(id, 1, Integer::sum);
+        }
+
+        void pop(Object id) {
+            counts.computeIfPresent(id, (k, count) -> count > 1 ? count - 1 : null);
+        }
+
+        boolean contains(Object id) {
+            return counts.containsKey(id);
+        }
+
+    }
 
 }
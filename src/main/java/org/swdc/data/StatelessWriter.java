@@ -0,0 +1,626 @@
+package org.swdc.data;
+
+import org.swdc.data.anno.StatelessIgnore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 直接把实体写为JSON或者二进制（CBOR，RFC 8949）格式，不再创建中间的DTO。
+ *
+ * 写出的内容与先调用StatelessHelper.stateless，再调用safety，最后序列化的结果一致：
+ * StatelessIgnore的字段和因为循环引用而不会被复制的关联不会出现在结果中，
+ * StatelessPrivate的字段总是写为null。指定FetchPlan的时候只写出其中的关联。
+ *
+ * 与stateless一样，读取没有加载的关联会触发延迟加载，所以应该在工作单元中使用，
+ * 或者事先通过FetchPlan加载需要的关联。本类不是线程安全的。
+ *
+ * <pre>
+ * StatelessWriter.json(response.getOutputStream()).write(user);
+ * </pre>
+ */
+public class StatelessWriter {
+
+    private final Encoder encoder;
+
+    private FetchPlan plan;
+
+    private StatelessWriter(Encoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * 以UTF-8编码的JSON写出。
+     */
+    public static StatelessWriter json(OutputStream out) {
+        return new StatelessWriter(new JsonEncoder(out));
+    }
+
+    /**
+     * 以JSON写入ByteBuffer，空间不足的时候抛出BufferOverflowException。
+     */
+    public static StatelessWriter json(ByteBuffer buffer) {
+        return json(new ByteBufferOutput(buffer));
+    }
+
+    /**
+     * 以CBOR格式写出，对象和数组使用不定长的编码。
+     */
+    public static StatelessWriter binary(OutputStream out) {
+        return new StatelessWriter(new CborEncoder(out));
+    }
+
+    /**
+     * 以CBOR格式写入ByteBuffer，空间不足的时候抛出BufferOverflowException。
+     */
+    public static StatelessWriter binary(ByteBuffer buffer) {
+        return binary(new ByteBufferOutput(buffer));
+    }
+
+    /**
+     * 只写出FetchPlan中的关联。
+     *
+     * @param plan 需要写出的关联
+     * @return 本对象，用于链式调用
+     */
+    public StatelessWriter plan(FetchPlan plan) {
+        this.plan = plan;
+        return this;
+    }
+
+    /**
+     * 写出一个实体，结束后内容已经交给OutputStream，但不会调用它的flush。
+     *
+     * @param entity 实体
+     */
+    public void write(Object entity) throws IOException {
+        Diagnostics.Scope scope = Diagnostics.begin(StatelessWriter.class, "write");
+        try {
+            writeEntity(entity, new HashMap<>(), "");
+            encoder.drain();
+        } finally {
+            Diagnostics.end(scope, null, 1);
+        }
+    }
+
+    /**
+     * 把一组实体写为一个数组。
+     *
+     * @param entities 实体
+     */
+    public void writeAll(Collection<?> entities) throws IOException {
+        Diagnostics.Scope scope = Diagnostics.begin(StatelessWriter.class, "writeAll");
+        try {
+            if (entities == null) {
+                encoder.nullValue();
+            } else {
+                encoder.beginArray();
+                for (Object entity : entities) {
+                    writeEntity(entity, new HashMap<>(), "");
+                }
+                encoder.endArray();
+            }
+            encoder.drain();
+        } finally {
+            Diagnostics.end(scope, null, entities == null ? 0 : entities.size());
+        }
+    }
+
+    /**
+     * 与StatelessHelper.stateless使用相同的规则遍历实体。
+     */
+    private void writeEntity(Object entity, Map<Class, StatelessHelper.ReverseIds> typedReversId, String path) throws IOException {
+        if (entity == null) {
+            encoder.nullValue();
+            return;
+        }
+        EntityMetadata metadata = EntityMetadata.of(entity.getClass());
+        Object entityId = null;
+        try {
+            entityId = metadata.getId(entity);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+
+        encoder.beginObject();
+        for (EntityMetadata.Property property : metadata.getStatelessProperties()) {
+            StatelessHelper.ReverseIds reversId = typedReversId.computeIfAbsent(
+                    property.getType(), k -> new StatelessHelper.ReverseIds()
+            );
+            StatelessIgnore ignore = property.getIgnore();
+            if (ignore != null && (!ignore.reverse() || reversId.contains(entityId))) {
+                continue;
+            }
+            String name = property.getField().getName();
+            if (property.isPrivacy()) {
+                encoder.name(name);
+                encoder.nullValue();
+                continue;
+            }
+            if (property.getRelation() == EntityMetadata.Relation.NONE) {
+                encoder.name(name);
+                writeValue(property.read(entity), typedReversId, path);
+                continue;
+            }
+
+            String childPath = path.isEmpty() ? name : path + "." + name;
+            if (plan != null && !plan.includes(childPath)) {
+                continue;
+            }
+            switch (property.getRelation()) {
+                case MANY_TO_ONE:
+                case ONE_TO_ONE: {
+                    if (reversId.contains(entityId)) {
+                        continue;
+                    }
+                    Object target = property.read(entity);
+                    encoder.name(name);
+                    reversId.push(entityId);
+                    writeEntity(target, typedReversId, childPath);
+                    reversId.pop(entityId);
+                    break;
+                }
+                case ENTITY: {
+                    encoder.name(name);
+                    writeEntity(property.read(entity), typedReversId, childPath);
+                    break;
+                }
+                case COLLECTION: {
+                    if (reversId.contains(entityId)) {
+                        continue;
+                    }
+                    Class type = property.getType();
+                    if (!List.class.isAssignableFrom(type) && !Set.class.isAssignableFrom(type)) {
+                        continue;
+                    }
+                    Collection collection = (Collection) property.read(entity);
+                    encoder.name(name);
+                    encoder.beginArray();
+                    if (collection != null) {
+                        reversId.push(entityId);
+                        for (Object item : collection) {
+                            writeEntity(item, typedReversId, childPath);
+                        }
+                        reversId.pop(entityId);
+                    }
+                    encoder.endArray();
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        encoder.endObject();
+    }
+
+    private void writeValue(Object value, Map<Class, StatelessHelper.ReverseIds> typedReversId, String path) throws IOException {
+        if (value == null) {
+            encoder.nullValue();
+        } else if (value instanceof String) {
+            encoder.string((String) value);
+        } else if (value instanceof Boolean) {
+            encoder.bool((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            encoder.number(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            encoder.number(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            encoder.decimal(value.toString());
+        } else if (value instanceof Character || value instanceof Enum) {
+            encoder.string(value instanceof Enum ? ((Enum) value).name() : value.toString());
+        } else if (value instanceof byte[]) {
+            encoder.bytes((byte[]) value);
+        } else if (value instanceof java.sql.Date) {
+            // java.sql.Date和Time不支持toInstant
+            encoder.string(((java.sql.Date) value).toLocalDate().toString());
+        } else if (value instanceof Time) {
+            encoder.string(((Time) value).toLocalTime().toString());
+        } else if (value instanceof Date) {
+            encoder.string(((Date) value).toInstant().toString());
+        } else if (value instanceof Calendar) {
+            encoder.string(((Calendar) value).toInstant().toString());
+        } else if (value instanceof Collection) {
+            encoder.beginArray();
+            for (Object item : (Collection) value) {
+                writeValue(item, typedReversId, path);
+            }
+            encoder.endArray();
+        } else if (value instanceof Map) {
+            encoder.beginObject();
+            for (Map.Entry entry : ((Map<?, ?>) value).entrySet()) {
+                encoder.name(String.valueOf(entry.getKey()));
+                writeValue(entry.getValue(), typedReversId, path);
+            }
+            encoder.endObject();
+        } else if (value.getClass().getClassLoader() == null) {
+            // java.time、UUID等JDK中的类型使用它们的文本形式
+            encoder.string(value.toString());
+        } else {
+            // Embeddable等普通的对象
+            writeEntity(value, typedReversId, path);
+        }
+    }
+
+    /**
+     * 输出格式，内部有自己的缓冲区，drain的时候交给OutputStream。
+     */
+    private abstract static class Encoder {
+
+        private final OutputStream out;
+
+        private final byte[] buffer = new byte[8192];
+
+        private int position;
+
+        Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        abstract void beginObject() throws IOException;
+
+        abstract void endObject() throws IOException;
+
+        abstract void name(String name) throws IOException;
+
+        abstract void beginArray() throws IOException;
+
+        abstract void endArray() throws IOException;
+
+        abstract void nullValue() throws IOException;
+
+        abstract void bool(boolean value) throws IOException;
+
+        abstract void number(long value) throws IOException;
+
+        abstract void number(double value) throws IOException;
+
+        abstract void decimal(String value) throws IOException;
+
+        abstract void string(String value) throws IOException;
+
+        abstract void bytes(byte[] value) throws IOException;
+
+        void put(int b) throws IOException {
+            if (position == buffer.length) {
+                drain();
+            }
+            buffer[position ++] = (byte) b;
+        }
+
+        void put(byte[] data) throws IOException {
+            if (data.length > buffer.length - position) {
+                drain();
+                if (data.length > buffer.length) {
+                    out.write(data);
+                    return;
+                }
+            }
+            System.arraycopy(data, 0, buffer, position, data.length);
+            position += data.length;
+        }
+
+        void drain() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+
+    private static class JsonEncoder extends Encoder {
+
+        private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+        private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+
+        private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        /**
+         * 每一层对象或数组是否还没有写出过元素
+         */
+        private boolean[] first = new boolean[32];
+
+        private int depth;
+
+        /**
+         * 刚刚写出了属性名，下一个值不需要分隔符
+         */
+        private boolean afterName;
+
+        JsonEncoder(OutputStream out) {
+            super(out);
+        }
+
+        private void separator() throws IOException {
+            if (afterName) {
+                afterName = false;
+                return;
+            }
+            if (depth > 0) {
+                if (first[depth]) {
+                    first[depth] = false;
+                } else {
+                    put(',');
+                }
+            }
+        }
+
+        private void open(int bracket) throws IOException {
+            separator();
+            put(bracket);
+            depth ++;
+            if (depth == first.length) {
+                boolean[] expanded = new boolean[first.length * 2];
+                System.arraycopy(first, 0, expanded, 0, first.length);
+                first = expanded;
+            }
+            first[depth] = true;
+        }
+
+        @Override
+        void beginObject() throws IOException {
+            open('{');
+        }
+
+        @Override
+        void endObject() throws IOException {
+            depth --;
+            put('}');
+        }
+
+        @Override
+        void name(String name) throws IOException {
+            separator();
+            quoted(name);
+            put(':');
+            afterName = true;
+        }
+
+        @Override
+        void beginArray() throws IOException {
+            open('[');
+        }
+
+        @Override
+        void endArray() throws IOException {
+            depth --;
+            put(']');
+        }
+
+        @Override
+        void nullValue() throws IOException {
+            separator();
+            put(NULL);
+        }
+
+        @Override
+        void bool(boolean value) throws IOException {
+            separator();
+            put(value ? TRUE : FALSE);
+        }
+
+        @Override
+        void number(long value) throws IOException {
+            separator();
+            ascii(Long.toString(value));
+        }
+
+        @Override
+        void number(double value) throws IOException {
+            separator();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                put(NULL);
+            } else {
+                ascii(Double.toString(value));
+            }
+        }
+
+        @Override
+        void decimal(String value) throws IOException {
+            separator();
+            ascii(value);
+        }
+
+        @Override
+        void string(String value) throws IOException {
+            separator();
+            quoted(value);
+        }
+
+        @Override
+        void bytes(byte[] value) throws IOException {
+            separator();
+            put('"');
+            put(Base64.getEncoder().encode(value));
+            put('"');
+        }
+
+        private void ascii(String value) throws IOException {
+            for (int index = 0; index < value.length(); index ++) {
+                put(value.charAt(index));
+            }
+        }
+
+        private void quoted(String value) throws IOException {
+            put('"');
+            for (int index = 0; index < value.length(); index ++) {
+                char c = value.charAt(index);
+                if (c == '"' || c == '\\') {
+                    put('\\');
+                    put(c);
+                } else if (c < 0x20) {
+                    switch (c) {
+                        case '\n': put('\\'); put('n'); break;
+                        case '\r': put('\\'); put('r'); break;
+                        case '\t': put('\\'); put('t'); break;
+                        default:
+                            put('\\'); put('u'); put('0'); put('0');
+                            put(HEX[c >> 4]); put(HEX[c & 0xF]);
+                    }
+                } else if (c < 0x80) {
+                    put(c);
+                } else if (c < 0x800) {
+                    put(0xC0 | (c >> 6));
+                    put(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(index + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++ index));
+                    put(0xF0 | (codePoint >> 18));
+                    put(0x80 | ((codePoint >> 12) & 0x3F));
+                    put(0x80 | ((codePoint >> 6) & 0x3F));
+                    put(0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // 不成对的代理项不能编码为UTF-8，只能转义
+                    put('\\'); put('u');
+                    put(HEX[c >> 12]); put(HEX[(c >> 8) & 0xF]);
+                    put(HEX[(c >> 4) & 0xF]); put(HEX[c & 0xF]);
+                } else {
+                    put(0xE0 | (c >> 12));
+                    put(0x80 | ((c >> 6) & 0x3F));
+                    put(0x80 | (c & 0x3F));
+                }
+            }
+            put('"');
+        }
+    }
+
+    private static class CborEncoder extends Encoder {
+
+        CborEncoder(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * 写出CBOR的头部：主类型以及长度或者整数值
+         */
+        private void head(int major, long value) throws IOException {
+            int type = major << 5;
+            if (value < 24) {
+                put(type | (int) value);
+            } else if (value <= 0xFF) {
+                put(type | 24);
+                put((int) value);
+            } else if (value <= 0xFFFF) {
+                put(type | 25);
+                put((int) (value >> 8));
+                put((int) value);
+            } else if (value <= 0xFFFFFFFFL) {
+                put(type | 26);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    put((int) (value >> shift));
+                }
+            } else {
+                put(type | 27);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    put((int) (value >> shift));
+                }
+            }
+        }
+
+        @Override
+        void beginObject() throws IOException {
+            put(0xBF);
+        }
+
+        @Override
+        void endObject() throws IOException {
+            put(0xFF);
+        }
+
+        @Override
+        void name(String name) throws IOException {
+            string(name);
+        }
+
+        @Override
+        void beginArray() throws IOException {
+            put(0x9F);
+        }
+
+        @Override
+        void endArray() throws IOException {
+            put(0xFF);
+        }
+
+        @Override
+        void nullValue() throws IOException {
+            put(0xF6);
+        }
+
+        @Override
+        void bool(boolean value) throws IOException {
+            put(value ? 0xF5 : 0xF4);
+        }
+
+        @Override
+        void number(long value) throws IOException {
+            if (value >= 0) {
+                head(0, value);
+            } else {
+                head(1, -1 - value);
+            }
+        }
+
+        @Override
+        void number(double value) throws IOException {
+            put(0xFB);
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                put((int) (bits >> shift));
+            }
+        }
+
+        @Override
+        void decimal(String value) throws IOException {
+            string(value);
+        }
+
+        @Override
+        void string(String value) throws IOException {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            head(3, data.length);
+            put(data);
+        }
+
+        @Override
+        void bytes(byte[] value) throws IOException {
+            head(2, value.length);
+            put(value);
+        }
+    }
+
+    private static class ByteBufferOutput extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferOutput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            buffer.put(data, offset, length);
+        }
+    }
+
+}
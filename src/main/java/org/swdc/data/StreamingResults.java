@@ -0,0 +1,150 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import org.hibernate.jpa.HibernateHints;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 以流的方式读取查询结果。
+ *
+ * 结果通过Query.getResultStream逐行从数据库读取，不会一次性加载到内存中，
+ * 已经读取过的实体会被移出持久化上下文，所以内存的占用是有上限的。
+ *
+ * 如果事务是为本次查询开启的，每读取clearInterval行就清空一次持久化上下文，
+ * 否则每读取DETACH_BATCH行就detach一次本次查询返回的实体，不影响调用者已经加载的其他实体。
+ * 清空或者detach之前会先flush，调用者在处理过程中对实体的修改不会丢失。
+ */
+class StreamingResults {
+
+    /**
+     * 不能清空持久化上下文的时候，每次detach的实体数量
+     */
+    private static final int DETACH_BATCH = 100;
+
+    private StreamingResults() {
+    }
+
+    /**
+     * 创建查询结果的流，使用完毕后需要关闭。
+     *
+     * @param em 执行查询的EntityManager
+     * @param query 查询
+     * @param entityClass 实体类型
+     * @param fetchSize JDBC每次读取的行数
+     * @param clearInterval 清空持久化上下文的间隔，小于等于0的时候逐个detach
+     * @return 结果的流
+     */
+    static Stream stream(EntityManager em, Query query, Class entityClass, int fetchSize, int clearInterval) {
+        if (fetchSize > 0) {
+            query.setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize);
+        }
+        Stream source = query.getResultStream();
+        Iterator iterator = new DetachingIterator(em, source.iterator(), entityClass, clearInterval);
+        Stream result = StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+        return (Stream) result.onClose(source::close);
+    }
+
+    /**
+     * 逐行把查询结果交给consumer处理。
+     *
+     * @return 处理的行数
+     */
+    static long forEach(EntityManager em, Query query, Class entityClass, int fetchSize, int clearInterval, Consumer consumer) {
+        long count = 0;
+        try (Stream stream = stream(em, query, entityClass, fetchSize, clearInterval)) {
+            Iterator iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                consumer.accept(iterator.next());
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    private static class DetachingIterator implements Iterator {
+
+        private final EntityManager em;
+
+        private final Iterator source;
+
+        private final Class entityClass;
+
+        private final int clearInterval;
+
+        private final List<Object> loaded = new ArrayList<>();
+
+        private int count;
+
+        private boolean released = true;
+
+        DetachingIterator(EntityManager em, Iterator source, Class entityClass, int clearInterval) {
+            this.em = em;
+            this.source = source;
+            this.entityClass = entityClass;
+            this.clearInterval = clearInterval;
+        }
+
+        @Override
+        public boolean hasNext() {
+            // 读取下一行之前释放已经处理完的行，Hibernate在hasNext的时候就会加载下一行的实体，
+            // 之后再clear的话，下一行的实体会在交给调用者之前就被移出持久化上下文。
+            release();
+            return source.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            release();
+            Object next = source.next();
+            count ++;
+            released = false;
+            if (clearInterval <= 0 && entityClass.isInstance(next)) {
+                loaded.add(next);
+            }
+            return next;
+        }
+
+        /**
+         * 之前的行已经交给调用者处理完毕，可以移出持久化上下文了。
+         */
+        private void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (clearInterval > 0) {
+                if (count > 0 && count % clearInterval == 0) {
+                    flush();
+                    em.clear();
+                }
+            } else if (loaded.size() >= DETACH_BATCH) {
+                flush();
+                for (Object entity : loaded) {
+                    if (em.contains(entity)) {
+                        em.detach(entity);
+                    }
+                }
+                loaded.clear();
+            }
+        }
+
+        /**
+         * detach和clear会丢弃还没有写入数据库的修改，所以先flush。
+         */
+        private void flush() {
+            if (em.getTransaction().isActive()) {
+                em.flush();
+            }
+        }
+    }
+
+}
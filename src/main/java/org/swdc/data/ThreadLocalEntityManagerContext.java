@@ -0,0 +1,52 @@
+package org.swdc.data;
+
+import jakarta.persistence.EntityManager;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 使用ThreadLocal保存EntityManager的上下文。
+ *
+ * 和原来以Thread为Key的Map不同，ThreadLocal的内容属于线程自身，
+ * 线程结束后不会再被引用，不会因为线程池或者临时线程而不断累积。
+ */
+public class ThreadLocalEntityManagerContext implements EntityManagerContext {
+
+    private final ThreadLocal<EntityManager> local = new ThreadLocal<>();
+
+    @Override
+    public EntityManager current() {
+        return local.get();
+    }
+
+    @Override
+    public <T> T scoped(EntityManager entityManager, Callable<T> task) throws Exception {
+        EntityManager previous = local.get();
+        local.set(entityManager);
+        try {
+            return task.call();
+        } finally {
+            if (previous == null) {
+                local.remove();
+            } else {
+                local.set(previous);
+            }
+        }
+    }
+
+    @Override
+    public boolean isImplicit() {
+        return true;
+    }
+
+    @Override
+    public void bind(EntityManager entityManager) {
+        local.set(entityManager);
+    }
+
+    @Override
+    public void unbind() {
+        local.remove();
+    }
+
+}
@@ -3,14 +3,23 @@ package org.swdc.data;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityTransaction;
+import jakarta.persistence.RollbackException;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.swdc.data.anno.Propagation;
 import org.swdc.data.anno.Transactional;
 import org.swdc.dependency.annotations.Aspect;
 import org.swdc.dependency.annotations.Interceptor;
 import org.swdc.dependency.interceptor.AspectAt;
 import org.swdc.dependency.interceptor.ProcessPoint;
 
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 
 @Interceptor
 public class Transaction {
@@ -21,30 +30,270 @@ public class Transaction {
     @Inject
     private Logger logger;
 
+    /**
+     * 事务方法执行期间，加入这个事务的Repository方法捕获的第一个异常。
+     * Repository只记录日志并返回null，但Hibernate已经把事务标记为只能回滚，
+     * 提交之前需要根据这个异常判断失败的原因，以及是否应该重试。
+     */
+    private static final ThreadLocal<Throwable[]> failures = new ThreadLocal<>();
+
+    /**
+     * 事务方法在监控指标中的名称
+     */
+    private static final Map<Method, String> metricNames = new ConcurrentHashMap<>();
+
+    /**
+     * 由Repository调用，记录它在已经存在的事务中捕获的异常。
+     */
+    static void failed(Throwable e) {
+        Throwable[] failure = failures.get();
+        if (failure != null && failure[0] == null) {
+            failure[0] = e;
+        }
+    }
+
     @Aspect(byAnnotation = Transactional.class,at= AspectAt.AROUND)
     public Object transaction(ProcessPoint processPoint) throws Throwable{
+        Transactional transactional = processPoint.getMethod().getAnnotation(Transactional.class);
+        Propagation propagation = transactional == null ? Propagation.REQUIRED : transactional.propagation();
+        boolean readOnly = transactional != null && transactional.readOnly();
+
         EntityManager manager = emf.getEntityManager();
+        if (manager == null) {
+            if (propagation == Propagation.NOT_SUPPORTED) {
+                // 没有事务需要挂起，Repository会自己开启工作单元
+                return processPoint.process();
+            }
+            // 作用域上下文中没有EntityManager，为本方法开启一个工作单元。
+            return emf.unitOfWork(() -> {
+                try {
+                    return transaction(processPoint);
+                } catch (Exception | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
         // EntityManager本身就是线程相关的，所以获取之后可以直接使用
         EntityTransaction transaction = manager.getTransaction();
+        if (transaction.isActive()) {
+            switch (propagation) {
+                case NOT_SUPPORTED:
+                    return emf.newUnitOfWork(() -> process(processPoint));
+                case REQUIRES_NEW:
+                    return emf.newUnitOfWork(() -> {
+                        try {
+                            return begin(processPoint, transactional, readOnly);
+                        } catch (Exception | Error e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                case NESTED:
+                    return nested(manager, processPoint, readOnly);
+                default:
+                    return join(manager, processPoint, readOnly);
+            }
+        }
+        if (propagation == Propagation.NOT_SUPPORTED) {
+            return processPoint.process();
+        }
+        return begin(processPoint, transactional, readOnly);
+    }
+
+    /**
+     * 开启新的事务执行方法，因为锁冲突失败的时候按照重试策略重新执行。
+     */
+    private Object begin(ProcessPoint processPoint, Transactional transactional, boolean readOnly) throws Throwable {
+        RetryPolicy retry = retryPolicy(transactional);
+        int attempt = 0;
+        // REQUIRES_NEW的时候外层的事务还在等待自己的结果
+        Throwable[] outer = failures.get();
         try {
-            Object result = null;
-            if (transaction.isActive()) {
-                result = processPoint.process();
-                manager.flush();
-                return result;
+            while (true) {
+                Throwable[] failure = new Throwable[1];
+                failures.set(failure);
+                // 隐式的上下文中，失败后EntityManager会被关闭，重试的时候需要重新获取
+                EntityManager manager = emf.getEntityManager();
+                EntityTransaction transaction = manager.getTransaction();
+                ReadOnlySession session = null;
+                long start = System.nanoTime();
+                try {
+                    // 只读事务的连接从只读副本获取
+                    boolean route = ReadRouting.route(readOnly);
+                    try {
+                        transaction.begin();
+                        if (readOnly) {
+                            session = ReadOnlySession.begin(manager, true);
+                        }
+                    } finally {
+                        ReadRouting.restore(route);
+                    }
+                    Object result = processPoint.process();
+                    if (!transaction.isActive() || transaction.getRollbackOnly()) {
+                        // 方法中的Repository失败的时候只记录了日志，事务已经不能提交，
+                        // 按照它们记录的异常决定是否重试
+                        throw new RollbackException("transaction method " + processPoint.getMethod().getName() +
+                                " was marked as rollback only", failure[0]);
+                    }
+                    if (!readOnly) {
+                        manager.flush();
+                    }
+                    transaction.commit();
+                    emf.release(manager);
+                    record(processPoint, start, false);
+                    return result;
+                } catch (Exception e) {
+                    if (manager.isOpen() && transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                    record(processPoint, start, true);
+                    attempt ++;
+                    if (retry.shouldRetry(attempt, e)) {
+                        logger.warn("transaction method " + processPoint.getMethod().getName() +
+                                " failed by lock conflict, retry " + attempt + " : " + e.getMessage());
+                        // 回滚之后持久化上下文中的实体已经和数据库不一致了
+                        if (manager.isOpen()) {
+                            manager.clear();
+                        }
+                        emf.release(manager);
+                        if (retry.await(attempt)) {
+                            continue;
+                        }
+                    }
+                    logger.error("fail to process transaction method: ",e);
+                    emf.release(manager);
+                    return null;
+                } finally {
+                    if (session != null) {
+                        session.close();
+                    }
+                }
+            }
+        } finally {
+            if (outer == null) {
+                failures.remove();
             } else {
-                transaction.begin();
+                failures.set(outer);
+            }
+        }
+    }
+
+    /**
+     * 加入已经存在的事务。
+     */
+    private Object join(EntityManager manager, ProcessPoint processPoint, boolean readOnly) throws Throwable {
+        EntityTransaction transaction = manager.getTransaction();
+        ReadOnlySession session = null;
+        long start = System.nanoTime();
+        try {
+            // 只把会话切换为只读，连接的状态不再改变，
+            // 外层事务中的修改需要先flush，否则本方法中的查询看不到它们
+            if (readOnly) {
+                manager.flush();
+                session = ReadOnlySession.begin(manager, false);
+            }
+            Object result = processPoint.process();
+            if (!readOnly) {
+                manager.flush();
             }
-            result = processPoint.process();
-            manager.flush();
-            transaction.commit();
-            manager.close();
             return result;
         } catch (Exception e) {
             logger.error("fail to process transaction method: ",e);
+            failed(e);
             transaction.rollback();
+            record(processPoint, start, true);
             return null;
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * 在已经存在的事务中创建保存点，失败的时候只回滚到保存点。
+     */
+    private Object nested(EntityManager manager, ProcessPoint processPoint, boolean readOnly) throws Throwable {
+        Session session = manager.unwrap(Session.class);
+        // 保存点之前的修改属于外层的事务
+        manager.flush();
+        Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+        ReadOnlySession readOnlySession = readOnly ? ReadOnlySession.begin(manager, false) : null;
+        long start = System.nanoTime();
+        try {
+            Object result = processPoint.process();
+            EntityTransaction transaction = manager.getTransaction();
+            if (!transaction.isActive() || transaction.getRollbackOnly()) {
+                // 方法中的Repository失败时只记录了日志，但Hibernate已经把整个事务标记为只能回滚，
+                // 回滚到保存点也不能撤销这个标记，外层的事务最终会回滚
+                Throwable[] failure = failures.get();
+                throw new RollbackException("nested transaction method " + processPoint.getMethod().getName() +
+                        " marked the outer transaction as rollback only", failure == null ? null : failure[0]);
+            }
+            if (!readOnly) {
+                manager.flush();
+            }
+            try {
+                session.doWork(conn -> conn.releaseSavepoint(savepoint));
+            } catch (Exception e) {
+                // 部分驱动不支持释放保存点，它会随着事务结束
+                logger.debug("can not release savepoint", e);
+            }
+            return result;
+        } catch (Exception e) {
+            logger.error("fail to process nested transaction method, rollback to savepoint: ",e);
+            failed(e);
+            session.doWork(conn -> conn.rollback(savepoint));
+            // 持久化上下文中可能还有保存点之后的修改，不能再被flush
+            manager.clear();
+            record(processPoint, start, true);
+            return null;
+        } finally {
+            if (readOnlySession != null) {
+                readOnlySession.close();
+            }
+        }
+    }
+
+    private Object process(ProcessPoint processPoint) throws Exception {
+        try {
+            return processPoint.process();
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 记录开启的事务，以及加入的事务和保存点的回滚。
+     */
+    private void record(ProcessPoint processPoint, long start, boolean rolledBack) {
+        DataMetrics metrics = emf.getMetrics();
+        if (metrics == DataMetrics.NONE) {
+            return;
+        }
+        Method method = processPoint.getMethod();
+        String name = metricNames.get(method);
+        if (name == null) {
+            name = metricNames.computeIfAbsent(method, m -> m.getDeclaringClass().getSimpleName() + "." + m.getName());
+        }
+        metrics.transaction(name, System.nanoTime() - start, rolledBack);
+    }
+
+    private RetryPolicy retryPolicy(Transactional transactional) {
+        int retries = transactional == null ? -1 : transactional.retries();
+        if (retries < 0) {
+            retries = emf.intProperty("swdc.data.transaction.retries", 0);
         }
+        return new RetryPolicy(
+                retries,
+                emf.intProperty("swdc.data.transaction.backoff", 50),
+                emf.intProperty("swdc.data.transaction.max-backoff", 2000)
+        );
     }
 
 }
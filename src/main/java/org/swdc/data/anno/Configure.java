@@ -17,4 +17,14 @@ public @interface Configure {
 
     Class<? extends Dialect> dialect() default Dialect.class;
 
+    /**
+     * 开启二级缓存，只有标注了@Cacheable的实体会被缓存。
+     */
+    boolean cache() default false;
+
+    /**
+     * 开启查询缓存，只有SQLQuery中cacheable为true的查询会被缓存。
+     */
+    boolean queryCache() default false;
+
 }
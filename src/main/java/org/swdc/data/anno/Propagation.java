@@ -0,0 +1,36 @@
+package org.swdc.data.anno;
+
+/**
+ * 事务的传播方式，决定Transactional的方法如何对待已经存在的事务。
+ */
+public enum Propagation {
+
+    /**
+     * 加入已经存在的事务，不存在的时候开启一个新的事务。
+     */
+    REQUIRED,
+
+    /**
+     * 总是在新的EntityManager中开启独立的事务，原来的事务在方法执行期间被挂起，
+     * 本方法的事务提交或回滚与外层的事务无关。
+     */
+    REQUIRES_NEW,
+
+    /**
+     * 已经存在事务的时候，在其中创建一个JDBC保存点，方法失败时只回滚到这个保存点，
+     * 外层的事务可以继续执行。不存在事务的时候与REQUIRED相同。
+     *
+     * 回滚到保存点的时候持久化上下文会被清空，外层事务中的实体也会变为游离状态；
+     * Hibernate自身抛出的异常会把整个事务标记为只能回滚，这时外层事务也无法提交。
+     * 方法中的Repository失败时虽然只记录日志并返回null，事务同样会被标记为只能回滚，
+     * 这种情况会作为本方法的失败记录下来，外层事务提交时回滚并报告这个失败。
+     */
+    NESTED,
+
+    /**
+     * 不在事务中执行，已经存在的事务在方法执行期间被挂起，
+     * 方法中的Repository调用各自开启和提交事务。
+     */
+    NOT_SUPPORTED
+
+}
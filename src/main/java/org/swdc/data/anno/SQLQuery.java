@@ -11,4 +11,19 @@ public @interface SQLQuery {
     String value();
     int firstResult() default -1;
     int maxResult() default -1;
+
+    /**
+     * 返回Page的时候使用的count查询，为空的时候通过查询语句推导。
+     */
+    String countQuery() default "";
+
+    /**
+     * 是否把查询的结果放入查询缓存，需要开启hibernate.cache.use_query_cache。
+     */
+    boolean cacheable() default false;
+
+    /**
+     * 查询缓存的区域，为空的时候使用默认的区域。
+     */
+    String cacheRegion() default "";
 }
@@ -13,4 +13,25 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Transactional {
 
+    /**
+     * 只读的事务，期间加载的实体不会保存快照和做脏检查，结束的时候也不会flush。
+     * 事务由本方法开启的时候，JDBC连接也会被标记为只读。
+     *
+     * 只读期间加载的实体之后依然是只读的，对它们的修改不会被保存。
+     */
+    boolean readOnly() default false;
+
+    /**
+     * 事务的传播方式。
+     */
+    Propagation propagation() default Propagation.REQUIRED;
+
+    /**
+     * 因为死锁、锁等待超时或者乐观锁冲突失败的时候，重新执行本方法的最大次数，
+     * 只对由本方法开启的事务有效，负数表示使用swdc.data.transaction.retries的配置，默认不重试。
+     *
+     * 重试会再次执行整个方法，方法中不应该有事务之外的、不能重复的操作。
+     */
+    int retries() default -1;
+
 }
@@ -0,0 +1,75 @@
+package org.swdc.data;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 由分页查询推导的count查询。
+ */
+public class CountQueryTest {
+
+    @Test
+    public void fromWithoutSelect() {
+        assertEquals("select count(*) from User", InvocationPlan.deriveCountQuery("from User"));
+        assertEquals("select count(*) from User u where u.age > :age",
+                InvocationPlan.deriveCountQuery("from User u where u.age > :age"));
+    }
+
+    @Test
+    public void selectionIsCounted() {
+        assertEquals("select count(u) from User u where u.age > :age",
+                InvocationPlan.deriveCountQuery("select u from User u where u.age > :age"));
+        assertEquals("select count(distinct u) from User u join u.pets p",
+                InvocationPlan.deriveCountQuery("select distinct u from User u join u.pets p"));
+        assertEquals("select count(*) from User u",
+                InvocationPlan.deriveCountQuery("select u.id, u.name from User u"));
+    }
+
+    @Test
+    public void orderByIsRemoved() {
+        assertEquals("select count(*) from User u where u.age > :age",
+                InvocationPlan.deriveCountQuery("from User u where u.age > :age order by u.name desc, u.id"));
+        assertEquals("select count(u) FROM User u",
+                InvocationPlan.deriveCountQuery("SELECT u FROM User u ORDER BY u.id"));
+    }
+
+    @Test
+    public void orderByInSubqueryIsKept() {
+        String query = "from User u where u.id in (select p.owner.id from Pet p order by p.id)";
+        assertEquals("select count(*) " + query, InvocationPlan.deriveCountQuery(query));
+    }
+
+    @Test
+    public void limitClausesAreRemoved() {
+        assertEquals("select count(*) from User u where u.age > :age",
+                InvocationPlan.deriveCountQuery("from User u where u.age > :age fetch first 10 rows only"));
+        assertEquals("select count(*) from User u",
+                InvocationPlan.deriveCountQuery("from User u order by u.id fetch first 10 rows only"));
+        assertEquals("select count(u) from User u where u.age > 1",
+                InvocationPlan.deriveCountQuery("select u from User u where u.age > 1 offset 5 rows fetch next 10 rows only"));
+        assertEquals("select count(*) from User u",
+                InvocationPlan.deriveCountQuery("from User u limit 10 offset 20"));
+    }
+
+    @Test
+    public void fetchJoinsCountDistinctRoots() {
+        // join fetch的集合会让一个实体占用多行，Hibernate返回的是去重后的实体
+        assertEquals("select count(distinct u) from User u left join u.pets where u.age > :age",
+                InvocationPlan.deriveCountQuery("from User u left join fetch u.pets where u.age > :age order by u.id"));
+        assertEquals("select count(distinct u) from User u join u.pets p",
+                InvocationPlan.deriveCountQuery("select u from User u join fetch u.pets p"));
+        assertEquals("select count(distinct u) from User as u join u.pets",
+                InvocationPlan.deriveCountQuery("from User as u join fetch u.pets"));
+    }
+
+    @Test
+    public void notDerivable() {
+        assertNull(InvocationPlan.deriveCountQuery("update User set age = 1"));
+        assertNull(InvocationPlan.deriveCountQuery("select 1"));
+        // 没有别名的时候无法对去重后的实体计数
+        assertNull(InvocationPlan.deriveCountQuery("from User join fetch pets"));
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.swdc.data;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.swdc.data.anno.Param;
+import org.swdc.data.anno.Repository;
+import org.swdc.data.anno.SQLQuery;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 在内存数据库上检查偏移分页和键集分页。
+ */
+public class PagingTest {
+
+    private static final int ROWS = 10;
+
+    private static EMFProviderFactory factory;
+
+    private static ItemRepository repository;
+
+    /**
+     * 按保存的顺序排列的Id
+     */
+    private static final List<Long> saved = new ArrayList<>();
+
+    @BeforeAll
+    public static void setUp() {
+        List<Class> entities = new ArrayList<>(Arrays.asList(Item.class));
+        factory = new EMFProviderFactory(entities, new ArrayList<>(Arrays.asList(ItemRepository.class)));
+        factory.initialize();
+        factory.url("jdbc:h2:mem:paging;DB_CLOSE_DELAY=-1");
+        factory.create();
+
+        DefaultRepository<Item, Long> handler = new DefaultRepository<>();
+        handler.init(factory, Item.class);
+        repository = (ItemRepository) Proxy.newProxyInstance(
+                PagingTest.class.getClassLoader(), new Class[] { ItemRepository.class }, handler
+        );
+
+        List<Item> items = new ArrayList<>();
+        for (int index = 1; index <= ROWS; index ++) {
+            Item item = new Item();
+            item.setScore(index * 10);
+            items.add(item);
+        }
+        for (Item item : repository.saveAll(items)) {
+            saved.add(item.getId());
+        }
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        factory.destroy();
+    }
+
+    @Test
+    public void keysetPagesVisitEveryRowOnce() {
+        List<Long> ids = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        Page<Item> page = repository.page(0, Pageable.keyset(4));
+        while (true) {
+            assertEquals(Page.UNKNOWN, page.getTotalElements());
+            assertEquals(-1, page.getTotalPages());
+            sizes.add(page.getNumberOfElements());
+            page.forEach(item -> ids.add(item.getId()));
+            if (!page.hasNext()) {
+                break;
+            }
+            page = repository.page(0, page.nextPageable());
+        }
+        assertEquals(Arrays.asList(4, 4, 2), sizes);
+        assertEquals(ids(1, ROWS), ids);
+    }
+
+    @Test
+    public void keysetPageEndsWithoutAnEmptyPage() {
+        Page<Item> first = repository.page(0, Pageable.keyset(5));
+        assertTrue(first.hasNext());
+        Page<Item> second = repository.page(0, first.nextPageable());
+        assertEquals(5, second.getNumberOfElements());
+        assertFalse(second.hasNext());
+        assertNull(second.nextPageable());
+    }
+
+    @Test
+    public void keysetPageFollowsTheQueryConditions() {
+        Page<Item> first = repository.page(60, Pageable.keyset(3));
+        assertEquals(ids(6, 8), idsOf(first));
+        Page<Item> second = repository.page(60, first.nextPageable());
+        assertEquals(ids(9, 10), idsOf(second));
+        assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void countQueryWithoutKeysetParameter() {
+        // 键集分页不执行count查询，countQuery中不需要 :keyset
+        Page<Item> keyset = repository.counted(0, Pageable.keyset(4));
+        assertEquals(4, keyset.getNumberOfElements());
+        assertEquals(Page.UNKNOWN, keyset.getTotalElements());
+        assertTrue(keyset.hasNext());
+
+        Page<Item> offset = repository.counted(0, Pageable.of(1, 4));
+        assertEquals(ids(5, 8), idsOf(offset));
+        assertEquals(ROWS, offset.getTotalElements());
+        assertEquals(3, offset.getTotalPages());
+        assertTrue(offset.hasNext());
+    }
+
+    @Test
+    public void offsetPagesOfAKeysetQuery() {
+        Page<Item> last = repository.page(0, Pageable.of(2, 4));
+        assertEquals(ids(9, 10), idsOf(last));
+        assertEquals(ROWS, last.getTotalElements());
+        assertFalse(last.hasNext());
+    }
+
+    @Test
+    public void keysetSlices() {
+        List<Long> ids = new ArrayList<>();
+        Slice<Item> slice = repository.slice(0, Pageable.keyset(3));
+        int slices = 1;
+        slice.forEach(item -> ids.add(item.getId()));
+        while (slice.hasNext()) {
+            slice = repository.slice(0, slice.nextPageable());
+            slice.forEach(item -> ids.add(item.getId()));
+            slices ++;
+        }
+        assertEquals(4, slices);
+        assertEquals(ids(1, ROWS), ids);
+    }
+
+    @Test
+    public void getAllWithKeyset() {
+        List<Long> ids = new ArrayList<>();
+        Page<Item> page = repository.getAll(Pageable.keyset(6));
+        assertEquals(Page.UNKNOWN, page.getTotalElements());
+        page.forEach(item -> ids.add(item.getId()));
+        assertTrue(page.hasNext());
+        page = repository.getAll(page.nextPageable());
+        page.forEach(item -> ids.add(item.getId()));
+        assertFalse(page.hasNext());
+        assertEquals(ids(1, ROWS), ids);
+
+        Page<Item> offset = repository.getAll(Pageable.of(1, 6));
+        assertEquals(ROWS, offset.getTotalElements());
+        assertEquals(ids(7, 10), idsOf(offset));
+    }
+
+    /**
+     * @return 第from行到第to行的Id，从1开始
+     */
+    private static List<Long> ids(int from, int to) {
+        return saved.subList(from - 1, to);
+    }
+
+    private static List<Long> idsOf(Slice<Item> slice) {
+        List<Long> ids = new ArrayList<>();
+        slice.forEach(item -> ids.add(item.getId()));
+        return ids;
+    }
+
+    @Repository
+    public interface ItemRepository extends JPARepository<Item, Long> {
+
+        @SQLQuery("from PagingItem where score >= :score and (:keyset is null or id > :keyset) order by id")
+        Page<Item> page(@Param("score") int score, Pageable pageable);
+
+        @SQLQuery(value = "from PagingItem where score >= :score and (:keyset is null or id > :keyset) order by id",
+                countQuery = "select count(i) from PagingItem i where i.score >= :score")
+        Page<Item> counted(@Param("score") int score, Pageable pageable);
+
+        @SQLQuery("from PagingItem where score >= :score and (:keyset is null or id > :keyset) order by id")
+        Slice<Item> slice(@Param("score") int score, Pageable pageable);
+
+    }
+
+    @Entity(name = "PagingItem")
+    public static class Item {
+
+        @Id
+        @GeneratedValue(strategy = GenerationType.SEQUENCE)
+        private Long id;
+
+        private int score;
+
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public void setScore(int score) {
+            this.score = score;
+        }
+    }
+
+}
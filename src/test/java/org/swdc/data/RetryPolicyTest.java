@@ -0,0 +1,90 @@
+package org.swdc.data;
+
+import jakarta.persistence.LockTimeoutException;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.PessimisticLockException;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 事务重试时对异常的分类和重试次数。
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void lockConflictsAreTransient() {
+        assertTrue(RetryPolicy.isTransient(new OptimisticLockException("version")));
+        assertTrue(RetryPolicy.isTransient(new PessimisticLockException("lock")));
+        assertTrue(RetryPolicy.isTransient(new LockTimeoutException("timeout")));
+        assertTrue(RetryPolicy.isTransient(new StaleStateException("stale")));
+        assertTrue(RetryPolicy.isTransient(new LockAcquisitionException("lock", new SQLException("lock"))));
+        assertTrue(RetryPolicy.isTransient(new SQLTransactionRollbackException("deadlock")));
+    }
+
+    @Test
+    public void sqlStatesInTheCauseChain() {
+        // 序列化失败、死锁和PostgreSQL的锁等待失败，被包装在其他异常里面
+        for (String state : new String[] { "40001", "40P01", "55P03" }) {
+            SQLException cause = new SQLException("conflict", state);
+            assertTrue(RetryPolicy.isTransient(cause), state);
+            assertTrue(RetryPolicy.isTransient(new RuntimeException(new PersistenceException(cause))), state);
+        }
+    }
+
+    @Test
+    public void otherFailuresAreNotTransient() {
+        assertFalse(RetryPolicy.isTransient(null));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException("bad")));
+        assertFalse(RetryPolicy.isTransient(new PersistenceException(new SQLException("duplicate", "23505"))));
+        assertFalse(RetryPolicy.isTransient(new SQLException("no state")));
+    }
+
+    @Test
+    public void causeCyclesEnd() {
+        RuntimeException self = new RuntimeException("self") {
+            @Override
+            public synchronized Throwable getCause() {
+                return this;
+            }
+        };
+        assertFalse(RetryPolicy.isTransient(self));
+
+        RuntimeException first = new RuntimeException("first");
+        RuntimeException second = new RuntimeException("second", first);
+        first.initCause(second);
+        assertFalse(RetryPolicy.isTransient(first));
+    }
+
+    @Test
+    public void retriesAreCounted() {
+        OptimisticLockException conflict = new OptimisticLockException("version");
+        RetryPolicy policy = new RetryPolicy(2, 1, 4);
+        assertTrue(policy.shouldRetry(1, conflict));
+        assertTrue(policy.shouldRetry(2, conflict));
+        assertFalse(policy.shouldRetry(3, conflict));
+        assertFalse(policy.shouldRetry(1, new IllegalStateException("bad")));
+    }
+
+    @Test
+    public void noRetriesByDefault() {
+        RetryPolicy policy = new RetryPolicy(0, 1, 4);
+        assertFalse(policy.shouldRetry(1, new OptimisticLockException("version")));
+        assertFalse(new RetryPolicy(-1, 1, 4).shouldRetry(1, new OptimisticLockException("version")));
+    }
+
+    @Test
+    public void awaitBacksOff() {
+        RetryPolicy policy = new RetryPolicy(3, 1, 2);
+        assertTrue(policy.await(1));
+        assertTrue(policy.await(30));
+    }
+
+}
@@ -0,0 +1,320 @@
+package org.swdc.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.OneToMany;
+import org.junit.jupiter.api.Test;
+import org.swdc.data.anno.StatelessPrivate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * StatelessWriter写出的JSON和CBOR交给Jackson的解析器读回，与原来的实体比较。
+ */
+public class StatelessWriterTest {
+
+    /**
+     * 需要转义的字符、多字节字符和代理对
+     */
+    private static final String[] TEXTS = {
+            "",
+            "plain",
+            "quote \" backslash \\ slash /",
+            "\u0000\u0001\u0008\u000b\u000c\u001f",
+            "line\nreturn\rtab\t",
+            "\u00e9 \u00df \u0436 \u4e2d\u6587",
+            "emoji \ud83d\ude00 and \ud834\udd1e",
+            "\ud83d\ude00",
+            "\u007f\u0080\u07ff\u0800\uffff"
+    };
+
+    private static final long[] NUMBERS = {
+            0, 1, 23, 24, 255, 256, 65535, 65536, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE,
+            -1, -24, -25, -256, -257, -65537, Long.MIN_VALUE
+    };
+
+    private final ObjectMapper json = new ObjectMapper();
+
+    private final ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+
+    @Test
+    public void jsonRoundTrip() throws IOException {
+        for (String text : TEXTS) {
+            assertRoundTrip(json, json(sample(text)), text);
+        }
+    }
+
+    @Test
+    public void cborRoundTrip() throws IOException {
+        for (String text : TEXTS) {
+            assertRoundTrip(cbor, cbor(sample(text)), text);
+        }
+    }
+
+    @Test
+    public void jsonEscapesUnpairedSurrogates() throws IOException {
+        // 不成对的代理项不能编码为UTF-8，只能以\\u转义写出
+        String text = "high \uD800 low \uDC00 end\uD83D";
+        byte[] data = json(sample(text));
+        assertEquals(text, json.readTree(data).get("title").textValue());
+        assertFalse(new String(data, "UTF-8").contains("\ufffd"));
+    }
+
+    @Test
+    public void longStringsCrossTheBuffer() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 40000) {
+            builder.append("\u4e2d\u6587\ud83d\ude00\n\"");
+        }
+        String text = builder.toString();
+        assertRoundTrip(json, json(sample(text)), text);
+        assertRoundTrip(cbor, cbor(sample(text)), text);
+    }
+
+    @Test
+    public void writeAllWritesAnArray() throws IOException {
+        List<Sample> samples = Arrays.asList(sample("a"), null, sample("b"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StatelessWriter.json(out).writeAll(samples);
+        JsonNode jsonArray = json.readTree(out.toByteArray());
+        out = new ByteArrayOutputStream();
+        StatelessWriter.binary(out).writeAll(samples);
+        JsonNode cborArray = cbor.readTree(out.toByteArray());
+        for (JsonNode array : Arrays.asList(jsonArray, cborArray)) {
+            assertTrue(array.isArray());
+            assertEquals(3, array.size());
+            assertEquals("a", array.get(0).get("title").textValue());
+            assertTrue(array.get(1).isNull());
+            assertEquals("b", array.get(2).get("title").textValue());
+        }
+    }
+
+    @Test
+    public void byteBufferOverflow() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        assertThrows(BufferOverflowException.class, () -> StatelessWriter.json(buffer).write(sample("too long for the buffer")));
+    }
+
+    private void assertRoundTrip(ObjectMapper mapper, byte[] data, String text) throws IOException {
+        JsonNode node = mapper.readTree(data);
+        assertEquals(7L, node.get("id").asLong());
+        assertEquals(text, node.get("title").textValue());
+        assertTrue(node.get("secret").isNull(), "StatelessPrivate is written as null");
+        assertTrue(node.get("missing").isNull());
+        assertTrue(node.get("active").booleanValue());
+        assertEquals(0.1, node.get("ratio").asDouble());
+        assertArrayEquals(new byte[] { 0, 1, (byte) 0xFF, 'x' }, node.get("data").binaryValue());
+
+        JsonNode numbers = node.get("numbers");
+        assertEquals(NUMBERS.length, numbers.size());
+        for (int index = 0; index < NUMBERS.length; index ++) {
+            assertEquals(NUMBERS[index], numbers.get(index).longValue());
+        }
+
+        JsonNode tags = node.get("tags");
+        assertEquals(2, tags.size());
+        assertEquals(text, tags.get(0).textValue());
+        assertEquals("tag", tags.get(1).textValue());
+
+        JsonNode children = node.get("children");
+        assertEquals(2, children.size());
+        assertEquals(text, children.get(0).get("name").textValue());
+        assertEquals(-3, children.get(1).get("weight").intValue());
+    }
+
+    private byte[] json(Object entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StatelessWriter.json(out).write(entity);
+        return out.toByteArray();
+    }
+
+    private byte[] cbor(Object entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StatelessWriter.binary(out).write(entity);
+        return out.toByteArray();
+    }
+
+    private static Sample sample(String text) {
+        Sample sample = new Sample();
+        sample.setId(7L);
+        sample.setTitle(text);
+        sample.setSecret("secret");
+        sample.setActive(true);
+        sample.setRatio(0.1);
+        sample.setData(new byte[] { 0, 1, (byte) 0xFF, 'x' });
+        List<Long> numbers = new ArrayList<>();
+        for (long number : NUMBERS) {
+            numbers.add(number);
+        }
+        sample.setNumbers(numbers);
+        sample.setTags(Arrays.asList(text, "tag"));
+        sample.setChildren(Arrays.asList(child(1L, text, 5), child(2L, "second", -3)));
+        return sample;
+    }
+
+    private static SampleChild child(Long id, String name, int weight) {
+        SampleChild child = new SampleChild();
+        child.setId(id);
+        child.setName(name);
+        child.setWeight(weight);
+        return child;
+    }
+
+    @Entity
+    public static class Sample {
+
+        @Id
+        private Long id;
+
+        private String title;
+
+        @StatelessPrivate
+        private String secret;
+
+        private String missing;
+
+        private boolean active;
+
+        private double ratio;
+
+        private byte[] data;
+
+        private List<Long> numbers;
+
+        private List<String> tags;
+
+        @OneToMany
+        private List<SampleChild> children;
+
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public void setTitle(String title) {
+            this.title = title;
+        }
+
+        public String getSecret() {
+            return secret;
+        }
+
+        public void setSecret(String secret) {
+            this.secret = secret;
+        }
+
+        public String getMissing() {
+            return missing;
+        }
+
+        public void setMissing(String missing) {
+            this.missing = missing;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public void setActive(boolean active) {
+            this.active = active;
+        }
+
+        public double getRatio() {
+            return ratio;
+        }
+
+        public void setRatio(double ratio) {
+            this.ratio = ratio;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public void setData(byte[] data) {
+            this.data = data;
+        }
+
+        public List<Long> getNumbers() {
+            return numbers;
+        }
+
+        public void setNumbers(List<Long> numbers) {
+            this.numbers = numbers;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+
+        public void setTags(List<String> tags) {
+            this.tags = tags;
+        }
+
+        public List<SampleChild> getChildren() {
+            return children;
+        }
+
+        public void setChildren(List<SampleChild> children) {
+            this.children = children;
+        }
+    }
+
+    @Entity
+    public static class SampleChild {
+
+        @Id
+        private Long id;
+
+        private String name;
+
+        private int weight;
+
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+    }
+
+}